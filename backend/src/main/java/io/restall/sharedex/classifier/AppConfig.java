@@ -1,7 +1,10 @@
 package io.restall.sharedex.classifier;
 
+import io.restall.sharedex.classifier.api.RateLimit;
+
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.Optional;
 
 public record AppConfig(
@@ -15,9 +18,40 @@ public record AppConfig(
         Path allCardsPath,
         String uiHost,
         Path previewDir,
+        Path previewAtlasPath,
+        int previewTileCacheSize,
+        int previewCacheMb,
+        int previewDirMaxMb,
+        int uploadDirMaxMb,
         String dbUrl,
         String dbUser,
-        String dbPassword
+        String dbPassword,
+        int dbPoolSize,
+        long dbPoolTimeoutMs,
+        long dbLeakDetectionMs,
+        Path deckStoreDir,
+        int deckBatchSize,
+        long deckBatchWindowMs,
+        int deckQueueCapacity,
+        int botMaxImagesInFlight,
+        int botRecognitionThreads,
+        int botMinCardWidth,
+        Path botCursorPath,
+        String redditBaseUrl,
+        Path backfillCheckpointPath,
+        int backfillListingsPerMinute,
+        int backfillImagesPerMinute,
+        Instant backfillUntil,
+        int backfillMaxPages,
+        Path imageCacheDir,
+        int imageCacheMb,
+        boolean imageCacheRevalidate,
+        RateLimit uploadRateLimit,
+        RateLimit previewRateLimit,
+        RateLimit deckRateLimit,
+        int feedPageSize,
+        int feedMaxPageSize,
+        String metricsToken
 ) {
 
     private static String CARD_IMAGE_DIR = "CARD_IMAGE_DIR";
@@ -30,9 +64,40 @@ public record AppConfig(
     private static String ALL_CARDS_PATH = "ALL_CARDS_PATH";
     private static String UI_HOST = "UI_HOST";
     private static String PREVIEW_DIR = "PREVIEW_DIR";
+    private static String PREVIEW_ATLAS_PATH = "PREVIEW_ATLAS_PATH";
+    private static String PREVIEW_TILE_CACHE_SIZE = "PREVIEW_TILE_CACHE_SIZE";
+    private static String PREVIEW_CACHE_MB = "PREVIEW_CACHE_MB";
+    private static String PREVIEW_DIR_MAX_MB = "PREVIEW_DIR_MAX_MB";
+    private static String UPLOAD_DIR_MAX_MB = "UPLOAD_DIR_MAX_MB";
     private static String DB_URL = "DB_URL";
     private static String DB_USER = "DB_USER";
     private static String DB_PASS = "DB_PASS";
+    private static String DB_POOL_SIZE = "DB_POOL_SIZE";
+    private static String DB_POOL_TIMEOUT_MS = "DB_POOL_TIMEOUT_MS";
+    private static String DB_LEAK_DETECTION_MS = "DB_LEAK_DETECTION_MS";
+    private static String DECK_STORE_DIR = "DECK_STORE_DIR";
+    private static String DECK_BATCH_SIZE = "DECK_BATCH_SIZE";
+    private static String DECK_BATCH_WINDOW_MS = "DECK_BATCH_WINDOW_MS";
+    private static String DECK_QUEUE_CAPACITY = "DECK_QUEUE_CAPACITY";
+    private static String BOT_MAX_IMAGES_IN_FLIGHT = "BOT_MAX_IMAGES_IN_FLIGHT";
+    private static String BOT_RECOGNITION_THREADS = "BOT_RECOGNITION_THREADS";
+    private static String BOT_MIN_CARD_WIDTH = "BOT_MIN_CARD_WIDTH";
+    private static String BOT_CURSOR_PATH = "BOT_CURSOR_PATH";
+    private static String REDDIT_BASE_URL = "REDDIT_BASE_URL";
+    private static String BACKFILL_CHECKPOINT_PATH = "BACKFILL_CHECKPOINT_PATH";
+    private static String BACKFILL_LISTINGS_PER_MINUTE = "BACKFILL_LISTINGS_PER_MINUTE";
+    private static String BACKFILL_IMAGES_PER_MINUTE = "BACKFILL_IMAGES_PER_MINUTE";
+    private static String BACKFILL_UNTIL = "BACKFILL_UNTIL";
+    private static String BACKFILL_MAX_PAGES = "BACKFILL_MAX_PAGES";
+    private static String IMAGE_CACHE_DIR = "IMAGE_CACHE_DIR";
+    private static String IMAGE_CACHE_MB = "IMAGE_CACHE_MB";
+    private static String IMAGE_CACHE_REVALIDATE = "IMAGE_CACHE_REVALIDATE";
+    private static String UPLOAD_RATE_LIMIT = "UPLOAD_RATE_LIMIT";
+    private static String PREVIEW_RATE_LIMIT = "PREVIEW_RATE_LIMIT";
+    private static String DECK_RATE_LIMIT = "DECK_RATE_LIMIT";
+    private static String FEED_PAGE_SIZE = "FEED_PAGE_SIZE";
+    private static String FEED_MAX_PAGE_SIZE = "FEED_MAX_PAGE_SIZE";
+    private static String METRICS_TOKEN = "METRICS_TOKEN";
 
 
     public static AppConfig fromEnv() {
@@ -47,9 +112,40 @@ public record AppConfig(
                 pathFromEnv(ALL_CARDS_PATH),
                 System.getenv(UI_HOST),
                 pathFromEnv(PREVIEW_DIR),
+                pathFromEnv(PREVIEW_ATLAS_PATH),
+                intFromEnv(PREVIEW_TILE_CACHE_SIZE, 400),
+                intFromEnv(PREVIEW_CACHE_MB, 64),
+                intFromEnv(PREVIEW_DIR_MAX_MB, 1024),
+                intFromEnv(UPLOAD_DIR_MAX_MB, 2048),
                 System.getenv(DB_URL),
                 System.getenv(DB_USER),
-                System.getenv(DB_PASS)
+                System.getenv(DB_PASS),
+                intFromEnv(DB_POOL_SIZE, 8),
+                intFromEnv(DB_POOL_TIMEOUT_MS, 5000),
+                intFromEnv(DB_LEAK_DETECTION_MS, 10000),
+                pathFromEnv(DECK_STORE_DIR),
+                intFromEnv(DECK_BATCH_SIZE, 100),
+                intFromEnv(DECK_BATCH_WINDOW_MS, 250),
+                intFromEnv(DECK_QUEUE_CAPACITY, 10000),
+                intFromEnv(BOT_MAX_IMAGES_IN_FLIGHT, 16),
+                intFromEnv(BOT_RECOGNITION_THREADS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                intFromEnv(BOT_MIN_CARD_WIDTH, 64),
+                Optional.ofNullable(pathFromEnv(BOT_CURSOR_PATH)).orElse(Paths.get("bot.properties")),
+                Optional.ofNullable(System.getenv(REDDIT_BASE_URL)).orElse("https://www.reddit.com"),
+                Optional.ofNullable(pathFromEnv(BACKFILL_CHECKPOINT_PATH)).orElse(Paths.get("backfill.properties")),
+                intFromEnv(BACKFILL_LISTINGS_PER_MINUTE, 30),
+                intFromEnv(BACKFILL_IMAGES_PER_MINUTE, 600),
+                Optional.ofNullable(System.getenv(BACKFILL_UNTIL)).map(Instant::parse).orElse(null),
+                intFromEnv(BACKFILL_MAX_PAGES, 0),
+                pathFromEnv(IMAGE_CACHE_DIR),
+                intFromEnv(IMAGE_CACHE_MB, 2048),
+                booleanFromEnv(IMAGE_CACHE_REVALIDATE, true),
+                rateLimitFromEnv(UPLOAD_RATE_LIMIT, "1/15"),
+                rateLimitFromEnv(PREVIEW_RATE_LIMIT, "60/60"),
+                rateLimitFromEnv(DECK_RATE_LIMIT, "120/60"),
+                intFromEnv(FEED_PAGE_SIZE, 20),
+                intFromEnv(FEED_MAX_PAGE_SIZE, 100),
+                System.getenv(METRICS_TOKEN)
         );
     }
 
@@ -57,4 +153,16 @@ public record AppConfig(
         return Optional.ofNullable(System.getenv(envVar)).map(Paths::get).orElse(null);
     }
 
+    private static int intFromEnv(String envVar, int defaultValue) {
+        return Optional.ofNullable(System.getenv(envVar)).map(Integer::parseInt).orElse(defaultValue);
+    }
+
+    private static boolean booleanFromEnv(String envVar, boolean defaultValue) {
+        return Optional.ofNullable(System.getenv(envVar)).map(Boolean::parseBoolean).orElse(defaultValue);
+    }
+
+    private static RateLimit rateLimitFromEnv(String envVar, String defaultValue) {
+        return RateLimit.parse(Optional.ofNullable(System.getenv(envVar)).orElse(defaultValue));
+    }
+
 }
@@ -21,6 +21,12 @@ import static java.util.Collections.emptyList;
 @UtilityClass
 public class OutlineFinder {
 
+    // The most cards a screenshot is searched for across and down
+    public static final int GRID_COLUMNS = 10;
+    public static final int GRID_ROWS = 5;
+    // Gaps between cards are less than this fraction of a card's width
+    public static final int MAX_GAP_DIVISOR = 6;
+
     static {
         nu.pattern.OpenCV.loadLocally();
     }
@@ -86,12 +92,9 @@ public class OutlineFinder {
         var dx = avgWidth + gapSize;
         var dy = avgHeight + gapSize;
 
-        int nRows = 5;
-        int nCols = 10;
-
         List<Rect> allCards = new ArrayList<>();
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
+        for (int row = 0; row < GRID_ROWS; row++) {
+            for (int col = 0; col < GRID_COLUMNS; col++) {
                 int x = leftMostX + col * dx;
                 int y = topMostY + row * dy;
                 if (screenshot.size().height >= y + avgHeight && screenshot.size().width >= x + avgWidth && x > 0 && y > 0) {
@@ -139,11 +142,11 @@ public class OutlineFinder {
         var bottommostRectY = cardRects.stream().max(Comparator.comparing(rect -> rect.y)).get().y;
         var missingGaps = (imageHeight - bottommostRectY) / (cardHeight + gapSize);
         var bottomMostY = bottommostRectY + (missingGaps * (cardHeight + gapSize));
-        return bottomMostY - (5 * (cardHeight + gapSize));
+        return bottomMostY - (GRID_ROWS * (cardHeight + gapSize));
     }
 
     private static int getGapSize(List<Rect> cardRects) {
-        var maxGap = cardRects.stream().mapToInt(rect -> rect.width).average().orElse(0.0) / 6;
+        var maxGap = cardRects.stream().mapToInt(rect -> rect.width).average().orElse(0.0) / MAX_GAP_DIVISOR;
         return (int) cardRects.stream()
                 .mapToInt(rect -> rect.x + rect.width)
                 .flatMap(pos -> cardRects.stream().mapToInt(rect -> rect.x - pos))
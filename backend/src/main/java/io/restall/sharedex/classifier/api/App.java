@@ -7,14 +7,28 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.javalin.Javalin;
 import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.UnauthorizedResponse;
 import io.javalin.http.UploadedFile;
 import io.restall.sharedex.classifier.AppConfig;
 import io.restall.sharedex.classifier.ColourPHashMatcher;
 import io.restall.sharedex.classifier.MatchFinder;
 import io.restall.sharedex.classifier.bot.Bot;
 import io.restall.sharedex.classifier.bot.DeckRepository;
+import io.restall.sharedex.classifier.bot.DeckWriteBatcher;
+import io.restall.sharedex.classifier.bot.FeedCursor;
+import io.restall.sharedex.classifier.bot.ImageClassifier;
+import io.restall.sharedex.classifier.bot.PostgresDeckRepository;
 import io.restall.sharedex.classifier.bot.RedditClient;
+import io.restall.sharedex.classifier.db.DbClient;
+import io.restall.sharedex.classifier.index.CardDeckIndex;
+import io.restall.sharedex.classifier.index.CardStats;
+import io.restall.sharedex.classifier.index.DeckCatalog;
+import io.restall.sharedex.classifier.index.LatestDecks;
+import io.restall.sharedex.classifier.index.PopularDecks;
+import io.restall.sharedex.classifier.index.SimilarDeckIndex;
 import io.restall.sharedex.classifier.opencv.PokemonCardRecognizer;
 import io.restall.sharedex.classifier.opencv.Prediction;
 import lombok.SneakyThrows;
@@ -22,38 +36,72 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
 
 @Slf4j
 public class App {
     private static final long MAX_FILE_SIZE = 5 * 1024 * 1024; // 5MB
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String PREVIEW_CACHE_CONTROL = "public, max-age=86400";
+    private static final String LATEST_CACHE_CONTROL = "public, max-age=30";
+    private static final String FEED_PAGE_CACHE_CONTROL = "public, max-age=300";
     private final DeckCompressor compressor;
-    private final ImageDownloader imageDownloader = new ImageDownloader();
-    private final PreviewGenerator previewGenerator;
+    private final ImageDownloader imageDownloader;
     private final MatchFinder matchFinder;
+    private final DbClient dbClient;
     private final DeckRepository deckRepo;
+    private final DeckWriteBatcher deckWriter;
+    private final ImageClassifier imageClassifier;
     private final Path uploadDir;
     private final Path previewDir;
     private final String uiHost;
-    private final ExecutorService previewGeneratorExecutor = Executors.newFixedThreadPool(2);
+    private final int feedPageSize;
+    private final int feedMaxPageSize;
+    private final PreviewRenderer previewRenderer;
+    private final String previewVersion;
+    private final String metricsToken;
+    private final PreviewCache previewCache;
+    private final DirectoryJanitor previewJanitor;
+    private final DirectoryJanitor uploadJanitor;
     private final Bot bot;
+    private final DeckCatalog deckCatalog;
+    private final SimilarDeckIndex similarDeckIndex;
+    private final CardDeckIndex cardDeckIndex;
+    private final CardStats cardStats;
+    private final LatestDecks latestDecks;
+    private final PopularDecks popularDecks = new PopularDecks(50, Duration.ofHours(6));
 
-    private final Map<String, LocalDateTime> lastReqTime = new ConcurrentHashMap<>();
+    private final RateLimiter uploadLimiter;
+    private final RateLimiter previewLimiter;
+    private final RateLimiter deckLimiter;
 
     public App(AppConfig appConfig) throws IOException {
         if (!Files.exists(appConfig.uploadDir())) {
             Files.createDirectories(appConfig.uploadDir());
         }
+        if (!Files.exists(appConfig.previewDir())) {
+            Files.createDirectories(appConfig.previewDir());
+        }
 
         var om = new ObjectMapper();
         om.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -67,14 +115,46 @@ public class App {
 
         matchFinder = new MatchFinder(hashMatcher, cardRecogniser, rarityMap);
         compressor = new DeckCompressor(appConfig.cardListPath());
-        previewGenerator = new PreviewGenerator(appConfig);
+        imageDownloader = ImageDownloader.fromConfig(appConfig);
+        previewCache = new PreviewCache(appConfig.previewCacheMb() * 1024L * 1024L);
+        previewJanitor = new DirectoryJanitor(appConfig.previewDir(), appConfig.previewDirMaxMb() * 1024L * 1024L);
+        uploadJanitor = new DirectoryJanitor(appConfig.uploadDir(), appConfig.uploadDirMaxMb() * 1024L * 1024L);
+        var previewGenerator = new PreviewGenerator(appConfig);
+        previewVersion = previewGenerator.version();
+        previewRenderer = new PreviewRenderer(previewGenerator, previewCache, previewJanitor, 2, 256);
         uploadDir = appConfig.uploadDir();
         uiHost = appConfig.uiHost();
+        metricsToken = appConfig.metricsToken();
+        feedPageSize = appConfig.feedPageSize();
+        feedMaxPageSize = appConfig.feedMaxPageSize();
         previewDir = appConfig.previewDir();
-
-        var redditClient = new RedditClient(om);
-        deckRepo = new DeckRepository(appConfig.dbUrl(), appConfig.dbUser(), appConfig.dbPassword());
-        bot = new Bot(redditClient, deckRepo, imageDownloader, matchFinder, compressor);
+        uploadLimiter = new RateLimiter(appConfig.uploadRateLimit());
+        previewLimiter = new RateLimiter(appConfig.previewRateLimit());
+        deckLimiter = new RateLimiter(appConfig.deckRateLimit());
+
+        var redditClient = new RedditClient(om, appConfig.redditBaseUrl());
+        deckRepo = DeckRepository.fromConfig(appConfig);
+        // The embedded deck store has no pool to report on
+        dbClient = deckRepo instanceof PostgresDeckRepository postgres ? postgres.dbClient() : null;
+        deckWriter = new DeckWriteBatcher(deckRepo, appConfig.deckBatchSize(), appConfig.deckBatchWindowMs(),
+                appConfig.deckQueueCapacity());
+
+        deckCatalog = new DeckCatalog(compressor);
+        similarDeckIndex = new SimilarDeckIndex(deckCatalog);
+        cardDeckIndex = new CardDeckIndex(deckCatalog);
+        cardStats = new CardStats(compressor);
+        deckCatalog.addIndex(similarDeckIndex);
+        deckCatalog.addIndex(cardDeckIndex);
+        deckCatalog.addIndex(cardStats);
+        latestDecks = new LatestDecks(om, 10);
+        deckRepo.addListener(latestDecks::decksInserted);
+        latestDecks.load(deckRepo.getLatestDecks());
+        deckRepo.addListener(deckCatalog::decksInserted);
+        deckCatalog.load(deckRepo.getAllDecks());
+
+        imageClassifier = new ImageClassifier(imageDownloader, matchFinder, compressor,
+                appConfig.botMaxImagesInFlight(), appConfig.botRecognitionThreads(), appConfig.botMinCardWidth());
+        bot = new Bot(redditClient, deckRepo, deckWriter, imageClassifier, appConfig.botCursorPath());
     }
 
     public void start() {
@@ -87,10 +167,27 @@ public class App {
                 .post("/upload", this::handleUpload)
                 .post("/report", App::handleReport)
                 .get("/deck/{deckId}", this::handleGetDeck)
+                .get("/deck/{deckId}/similar", this::handleSimilarDecks)
                 .get("/latest", this::handleLatest)
+                .get("/feed", this::handleFeed)
+                .get("/search", this::handleSearch)
+                .get("/stats/cards", this::handleCardStats)
+                .get("/popular", this::handlePopular)
+                .before("/metrics/*", this::checkMetricsToken)
+                .get("/metrics/preview-cache", ctx -> ctx.json(previewCache.stats()))
+                .get("/metrics/db-pool", this::handleDbPoolMetrics)
                 .start(7070);
 
+        previewJanitor.start();
+        uploadJanitor.start();
         bot.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            bot.stop();
+            imageClassifier.close();
+            deckWriter.close();
+            deckRepo.close();
+        }));
     }
 
     public static void main(String[] args) throws IOException {
@@ -99,37 +196,103 @@ public class App {
 
     @SneakyThrows
     private void handlePreview(Context ctx) {
-        var deckId = ctx.pathParam("deckId");
+        if (!previewLimiter.tryAcquire(getIpAddress(ctx))) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+        var requestedId = ctx.pathParam("deckId");
+
+        // Previews are stored, cached and rendered under the canonical id so every ordering shares one image
+        String deckId;
+        try {
+            deckId = compressor.canonicalize(requestedId);
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.NOT_FOUND);
+            return;
+        }
+
+        // A preview changes when it's rendered by a new version, so it's revalidated rather than immutable
+        var etag = "\"p-" + previewVersion + "-" + requestedId + "\"";
+        if (notModified(ctx, etag, PREVIEW_CACHE_CONTROL)) {
+            return;
+        }
+        previewJanitor.recordAccess(deckId + ".webp");
+        // Any valid id can be previewed, only stored decks count towards popularity
+        if (deckCatalog.contains(deckId)) {
+            popularDecks.record(deckId);
+        }
+
+        var cached = previewCache.get(deckId);
+        if (cached != null) {
+            sendPreview(ctx, etag, cached, true);
+            return;
+        }
+
         var previewPath = previewDir.resolve(deckId + ".webp");
+        try (var channel = FileChannel.open(previewPath, StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (previewCache.shouldAdmit(deckId, size)) {
+                var bytes = new byte[(int) size];
+                var buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining() && channel.read(buf) != -1) {
+                }
+                previewCache.put(deckId, bytes);
+                sendPreview(ctx, etag, bytes, false);
+            } else {
+                ctx.contentType(ContentType.IMAGE_WEBP)
+                        .header(Header.CONTENT_LENGTH, Long.toString(size))
+                        .header(Header.ETAG, etag)
+                        .header(Header.CACHE_CONTROL, PREVIEW_CACHE_CONTROL);
+                // A streamed copy through a heap buffer rather than zero copy, the response stream isn't a file
+                // descriptor the kernel can send to. It keeps large previews from being held in memory whole
+                var out = Channels.newChannel(ctx.outputStream());
+                for (long pos = 0; pos < size; ) {
+                    pos += channel.transferTo(pos, size - pos, out);
+                }
+                previewCache.recordServed(size, false);
+            }
+            return;
+        } catch (NoSuchFileException e) {
+            // Not rendered yet
+        }
 
-        if (!Files.exists(previewPath)) {
-            var cardIds = compressor.decompress(deckId);
-            // Reduce the risk of getting hit by some bot or someone malicious
-            var future = previewGeneratorExecutor.submit(() -> previewGenerator.generatePreview(cardIds, deckId));
-            future.get(2, TimeUnit.SECONDS);
-            if (!future.isDone()) {
-                future.cancel(false);
+        var cardIds = compressor.decompress(deckId);
+        // Reduce the risk of getting hit by some bot or someone malicious
+        var future = previewRenderer.render(deckId, cardIds, PreviewRenderer.Priority.INTERACTIVE);
+        byte[] rendered = null;
+        try {
+            rendered = future.get(PreviewRenderer.INTERACTIVE_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                ctx.status(HttpStatus.SERVICE_UNAVAILABLE);
+                return;
             }
+            log.debug("Preview for deck {} not ready: {}", deckId, e.toString());
+        } catch (TimeoutException e) {
+            log.debug("Preview for deck {} not ready: {}", deckId, e.toString());
         }
-        if (Files.exists(previewPath)) {
-            ctx.contentType(ContentType.IMAGE_WEBP)
-                    .result(Files.newInputStream(previewPath));
+        if (rendered != null) {
+            sendPreview(ctx, etag, rendered, true);
         } else {
             ctx.status(HttpStatus.NOT_FOUND);
         }
     }
 
+    private void sendPreview(Context ctx, String etag, byte[] bytes, boolean fromMemory) {
+        ctx.contentType(ContentType.IMAGE_WEBP)
+                .header(Header.ETAG, etag)
+                .header(Header.CACHE_CONTROL, PREVIEW_CACHE_CONTROL)
+                .result(bytes);
+        previewCache.recordServed(bytes.length, fromMemory);
+    }
+
     @SneakyThrows
     private void handleUpload(Context ctx) {
-        var ipAddress = getIpAddress(ctx);
-
-        var capTime = LocalDateTime.now().minusSeconds(15);
-        if (lastReqTime.getOrDefault(ipAddress, LocalDateTime.MIN).isAfter(capTime)) {
+        if (!uploadLimiter.tryAcquire(getIpAddress(ctx))) {
             ctx.status(HttpStatus.BAD_REQUEST)
-                    .json(Map.of("error", "Rate Limit Reached. Please try again in 15 seconds."));
+                    .json(Map.of("error", "Rate Limit Reached. Please try again in a few seconds."));
             return;
         }
-        lastReqTime.put(ipAddress, LocalDateTime.now());
 
         UploadedFile file = ctx.uploadedFile("screenshot");
         var uri = ctx.formParam("uri");
@@ -176,10 +339,11 @@ public class App {
         var cardIds = results.stream().map(Prediction::cardName).toList();
         String compressed = null;
         if (results.size() == 20) {
-            var deckId = compressor.compress(cardIds);
-            previewGeneratorExecutor.execute(() -> previewGenerator.generatePreview(cardIds, deckId));
-            compressed = deckId;
-            deckRepo.insertDeck(deckId);
+            // The client gets the cards in the order they were found, the canonical id is only used for storage
+            compressed = compressor.compress(cardIds);
+            var deckId = compressor.compressCanonical(cardIds);
+            previewRenderer.render(deckId, compressor.decompress(deckId), PreviewRenderer.Priority.BACKGROUND);
+            deckWriter.submit(deckId, null);
         }
 
         ctx.status(HttpStatus.OK)
@@ -195,6 +359,7 @@ public class App {
             return;
         }
         Files.copy(inputStream, target);
+        uploadJanitor.recordWrite(target.getFileName().toString(), Files.size(target));
     }
 
     private static void handleReport(Context ctx) {
@@ -203,21 +368,191 @@ public class App {
     }
 
     private void handleLatest(Context ctx) {
-        var latestDecks = deckRepo.getLatestDecks();
+        var latest = latestDecks.snapshot();
+
+        if (notModified(ctx, latest.etag(), LATEST_CACHE_CONTROL)) {
+            return;
+        }
+        ctx.status(HttpStatus.OK)
+                .header(Header.ETAG, latest.etag())
+                .header(Header.CACHE_CONTROL, LATEST_CACHE_CONTROL)
+                .contentType(ContentType.APPLICATION_JSON)
+                .result(latest.json());
+    }
+
+    private void handleFeed(Context ctx) {
+        if (!deckLimiter.tryAcquire(getIpAddress(ctx))) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+        var limit = Math.clamp(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(feedPageSize), 1, feedMaxPageSize);
+        var cursorParam = ctx.queryParam("cursor");
+
+        FeedCursor cursor;
+        try {
+            cursor = cursorParam == null ? null : FeedCursor.decode(cursorParam);
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(Map.of("error", "Invalid cursor"));
+            return;
+        }
+
+        // Later pages only change if older decks are backfilled, so they can be cached for longer than the head
         ctx.status(HttpStatus.OK)
-                .json(latestDecks);
+                .header(Header.CACHE_CONTROL, cursor == null ? LATEST_CACHE_CONTROL : FEED_PAGE_CACHE_CONTROL)
+                .json(deckRepo.getDeckFeed(cursor, limit));
     }
 
     private void handleGetDeck(Context ctx) {
+        if (!deckLimiter.tryAcquire(getIpAddress(ctx))) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS);
+            return;
+        }
         var deckId = ctx.pathParam("deckId");
 
-        var cards = compressor.decompress(deckId);
+        // Decoding accepts ordinals that can't be encoded, so canonicalizing is part of checking the id is valid
+        List<String> cards;
+        String canonicalId;
+        try {
+            cards = compressor.decompress(deckId);
+            canonicalId = compressor.canonicalize(deckId);
+        } catch (IllegalArgumentException e) {
+            cards = null;
+            canonicalId = null;
+        }
         if (cards == null || cards.size() != 20) {
             ctx.status(HttpStatus.NOT_FOUND);
-        } else {
+            return;
+        }
+
+        // Deck ids encode the card list, so a deck never changes
+        var etag = "\"d-" + deckId + "\"";
+        if (notModified(ctx, etag, IMMUTABLE)) {
+            return;
+        }
+
+        if (deckCatalog.contains(canonicalId)) {
+            popularDecks.record(canonicalId);
+        }
+        ctx.status(HttpStatus.OK)
+                .header(Header.ETAG, etag)
+                .header(Header.CACHE_CONTROL, IMMUTABLE)
+                .json(Map.of("cards", cards, "canonicalId", canonicalId));
+    }
+
+    private void handleSimilarDecks(Context ctx) {
+        if (!deckLimiter.tryAcquire(getIpAddress(ctx))) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+        var deckId = ctx.pathParam("deckId");
+        var limit = Math.clamp(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(10), 1, 50);
+
+        try {
             ctx.status(HttpStatus.OK)
-                    .json(Map.of("cards", cards));
+                    .json(Map.of("similar", similarDeckIndex.findSimilar(deckId, limit)));
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    private void handleSearch(Context ctx) {
+        if (!deckLimiter.tryAcquire(getIpAddress(ctx))) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+        var limit = Math.clamp(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20), 1, 100);
+
+        List<Integer> allOf;
+        List<Integer> anyOf;
+        try {
+            allOf = parseCards(ctx.queryParam("all"));
+            anyOf = parseCards(ctx.queryParam("any"));
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(Map.of("error", e.getMessage()));
+            return;
+        }
+
+        ctx.status(HttpStatus.OK)
+                .json(Map.of("decks", cardDeckIndex.search(allOf, anyOf, limit)));
+    }
+
+    private void handleCardStats(Context ctx) {
+        var limit = Math.clamp(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(50), 1, 500);
+
+        CardStats.Window window;
+        try {
+            window = CardStats.Window.valueOf(ctx.queryParamAsClass("window", String.class).getOrDefault("week").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.BAD_REQUEST)
+                    .json(Map.of("error", "Window must be one of day, week or month"));
+            return;
+        }
+
+        ctx.status(HttpStatus.OK)
+                .json(cardStats.snapshot(window, limit));
+    }
+
+    private void handlePopular(Context ctx) {
+        var limit = Math.clamp(ctx.queryParamAsClass("limit", Integer.class).getOrDefault(20), 1, 50);
+        ctx.status(HttpStatus.OK)
+                .json(Map.of("decks", popularDecks.top(limit)));
+    }
+
+    /**
+     * Metrics are only served with the configured bearer token, and not at all if there isn't one.
+     */
+    private void checkMetricsToken(Context ctx) {
+        if (metricsToken == null) {
+            throw new NotFoundResponse();
+        }
+        var expected = ("Bearer " + metricsToken).getBytes(StandardCharsets.UTF_8);
+        var header = Optional.ofNullable(ctx.header(Header.AUTHORIZATION)).orElse("");
+        var actual = header.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new UnauthorizedResponse();
+        }
+    }
+
+    private void handleDbPoolMetrics(Context ctx) {
+        if (dbClient == null) {
+            // Embedded deck store, there's no pool
+            ctx.status(HttpStatus.NOT_FOUND);
+            return;
+        }
+        ctx.json(dbClient.metrics());
+    }
+
+    private List<Integer> parseCards(String cards) {
+        if (cards == null || cards.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(cards.split(","))
+                .map(String::trim)
+                .filter(card -> !card.isEmpty())
+                .map(compressor::ordinalOf)
+                .toList();
+    }
+
+    private static boolean notModified(Context ctx, String etag, String cacheControl) {
+        var ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (var candidate : ifNoneMatch.split(",")) {
+            var tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                ctx.status(HttpStatus.NOT_MODIFIED)
+                        .header(Header.ETAG, etag)
+                        .header(Header.CACHE_CONTROL, cacheControl);
+                return true;
+            }
         }
+        return false;
     }
 
     private static String getFileExtension(String filename) {
@@ -3,111 +3,166 @@ package io.restall.sharedex.classifier.api;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.restall.sharedex.classifier.AppConfig;
-import io.restall.sharedex.classifier.collections.CardDetails;
 import lombok.SneakyThrows;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static java.nio.file.Files.newInputStream;
 
 public class DeckCompressor {
 
-    private final Map<Integer, String> idMap;
-    private final Map<String, Integer> cardMap;
+    private static final int MAX_ENTRIES = 20;
+    private static final int MAX_CARD_ID = 0x7FFF;
+
+    // Dense lookup from card ordinal to card id, null where an ordinal is unused
+    private final String[] idMap;
+    // Card ids sorted for binary search, with their ordinals at the same index
+    private final String[] sortedCards;
+    private final int[] sortedOrdinals;
 
     @SneakyThrows
     public DeckCompressor(Path idMapFilePath) {
-        var om = new ObjectMapper();
-        this.idMap = om.readValue(newInputStream(idMapFilePath), new TypeReference<HashMap<Integer,String>>(){});;
-        this.cardMap = idMap.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+        this(new ObjectMapper().readValue(newInputStream(idMapFilePath), new TypeReference<HashMap<Integer, String>>() {
+        }));
     }
 
-    public String compress(List<String> cards) {
-        var cardIds = cards.stream()
-                .map(cardMap::get)
+    public DeckCompressor(Map<Integer, String> idMap) {
+        var maxId = idMap.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+        this.idMap = new String[maxId + 1];
+        idMap.forEach((ordinal, card) -> this.idMap[ordinal] = card);
+
+        var byCard = idMap.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
                 .toList();
-        return encode(collapse(cardIds));
+        this.sortedCards = new String[byCard.size()];
+        this.sortedOrdinals = new int[byCard.size()];
+        for (int i = 0; i < byCard.size(); i++) {
+            sortedCards[i] = byCard.get(i).getValue();
+            sortedOrdinals[i] = byCard.get(i).getKey();
+        }
+    }
+
+    public String compress(List<String> cards) {
+        return encode(toOrdinals(cards));
     }
 
     public List<String> decompress(String compressedDeck) {
-        return expand(decode(compressedDeck)).stream()
-                .map(idMap::get)
-                .toList();
+        return Arrays.asList(toCards(decodeOrdinals(compressedDeck)));
     }
 
-    private static List<Integer> collapse(List<Integer> numbers) {
-        List<Integer> result = new ArrayList<>();
-        if (numbers.isEmpty()) {
-            return result;
-        }
+    /**
+     * Compresses the cards into their canonical deck id, which is the same for every ordering of the same cards.
+     */
+    public String compressCanonical(List<String> cards) {
+        return encode(canonicalOrdinals(toOrdinals(cards)));
+    }
 
-        int prev = numbers.getFirst();
-        boolean repeated = false;
-
-        for (int i = 1; i < numbers.size(); i++) {
-            int curr = numbers.get(i);
-            if (curr == prev) {
-                repeated = true;
-            } else {
-                result.add(repeated ? -prev : prev);
-                prev = curr;
-                repeated = false;
-            }
+    /**
+     * Converts any deck id, including order preserving ids from old links, into its canonical deck id.
+     */
+    public String canonicalize(String compressedDeck) {
+        return encode(canonicalOrdinals(decodeOrdinals(compressedDeck)));
+    }
+
+    /**
+     * Canonical form of a deck is its ordinals in ascending order, so copies of a card are always adjacent and
+     * collapse into a single doubled entry.
+     */
+    public static int[] canonicalOrdinals(int[] ordinals) {
+        var sorted = ordinals.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Decodes many deck ids at once, reusing a single scratch buffer.
+     * Each result is in the same position as its deck id.
+     */
+    public List<List<String>> decompressAll(List<String> compressedDecks) {
+        var scratch = new byte[MAX_ENTRIES * 2];
+        var result = new ArrayList<List<String>>(compressedDecks.size());
+        for (var deck : compressedDecks) {
+            result.add(Arrays.asList(toCards(decodeOrdinals(deck, scratch))));
         }
+        return result;
+    }
 
-        // handle the last group
-        result.add(repeated ? -prev : prev);
+    /**
+     * Decodes many deck ids to card ordinals at once, for callers that only need the numeric form.
+     */
+    public int[][] decodeOrdinalsAll(List<String> compressedDecks) {
+        var scratch = new byte[MAX_ENTRIES * 2];
+        var result = new int[compressedDecks.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = decodeOrdinals(compressedDecks.get(i), scratch);
+        }
         return result;
     }
 
-    public static List<Integer> expand(List<Integer> numbers) {
-        List<Integer> result = new ArrayList<>();
+    public int[] toOrdinals(List<String> cards) {
+        var ordinals = new int[cards.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = ordinalOf(cards.get(i));
+        }
+        return ordinals;
+    }
 
-        for (int n : numbers) {
-            if (n < 0) {
-                int value = -n;
-                result.add(value);
-                result.add(value); // repeat twice
-            } else {
-                result.add(n);
-            }
+    public String[] toCards(int[] ordinals) {
+        var cards = new String[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            cards[i] = cardOf(ordinals[i]);
         }
+        return cards;
+    }
 
-        return result;
+    public int ordinalOf(String card) {
+        var index = Arrays.binarySearch(sortedCards, card);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown card: " + card);
+        }
+        return sortedOrdinals[index];
     }
 
     /**
-     * Encodes a list of up to 20 card entries into a URL-safe base64 string.
-     * Each integer represents a card where:
-     * - Positive values (1-32767): card ID with count of 1
-     * - Negative values (-1 to -32767): card ID (absolute value) with count of 2
-     *
-     * Uses 2 bytes per card: 15 bits for ID, 1 bit for count
+     * @return the card id for the ordinal, or null if the ordinal isn't a known card
      */
-    private String encode(List<Integer> cards) {
-        if (cards.size() > 20) {
-            throw new IllegalArgumentException("List cannot contain more than 20 cards");
-        }
+    public String cardOf(int ordinal) {
+        return ordinal >= 0 && ordinal < idMap.length ? idMap[ordinal] : null;
+    }
 
-        byte[] bytes = new byte[cards.size() * 2];
-        int byteIndex = 0;
+    /**
+     * @return the highest card ordinal in use, ordinals from 0 up to this may map to a card
+     */
+    public int maxOrdinal() {
+        return idMap.length - 1;
+    }
 
-        for (int card : cards) {
-            int cardId;
-            boolean isDouble;
+    /**
+     * Encodes card ordinals into a URL-safe base64 string.
+     * Adjacent duplicates are collapsed into a single entry, up to 20 entries are allowed.
+     *
+     * Uses 2 bytes per entry: 15 bits for the card ordinal (1-32767), 1 bit (MSB) set when the card has a count of 2
+     */
+    public String encode(int[] ordinals) {
+        byte[] bytes = new byte[ordinals.length * 2];
+        int byteIndex = 0;
 
-            if (card < 0) {
-                cardId = -card;
-                isDouble = true;
-            } else {
-                cardId = card;
-                isDouble = false;
+        for (int i = 0; i < ordinals.length; i++) {
+            int cardId = ordinals[i];
+            boolean isDouble = i + 1 < ordinals.length && ordinals[i + 1] == cardId;
+            if (isDouble) {
+                // A run of any length collapses to a single doubled entry
+                while (i + 1 < ordinals.length && ordinals[i + 1] == cardId) {
+                    i++;
+                }
             }
 
-            if (cardId <= 0 || cardId > 32767) {
+            if (byteIndex == MAX_ENTRIES * 2) {
+                throw new IllegalArgumentException("List cannot contain more than 20 cards");
+            }
+            if (cardId <= 0 || cardId > MAX_CARD_ID) {
                 throw new IllegalArgumentException("Card ID must be between 1 and 32767, got: " + cardId);
             }
 
@@ -119,36 +174,47 @@ public class DeckCompressor {
             bytes[byteIndex++] = (byte) encoded;
         }
 
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, byteIndex));
+    }
+
+    public int[] decodeOrdinals(String encoded) {
+        return decodeOrdinals(encoded, new byte[MAX_ENTRIES * 2]);
     }
 
     /**
-     * Decodes a URL-safe base64 string back into a list of card entries.
-     * Returns integers where:
-     * - Positive values: card ID with count of 1
-     * - Negative values: card ID with count of 2
+     * Decodes a URL-safe base64 string back into card ordinals, expanding doubled entries into two ordinals.
      */
-    private List<Integer> decode(String encoded) {
-        byte[] bytes = Base64.getUrlDecoder().decode(encoded);
-
-        if (bytes.length % 2 != 0) {
+    private static int[] decodeOrdinals(String encoded, byte[] scratch) {
+        var src = encoded.getBytes(StandardCharsets.ISO_8859_1);
+        // Base64 decodes to at most 3 bytes per 4 characters, oversized ids still decode so callers can reject them
+        var maxLength = (int) (src.length * 3L / 4);
+        var bytes = maxLength > scratch.length ? new byte[maxLength] : scratch;
+        int length = Base64.getUrlDecoder().decode(src, bytes);
+
+        if (length % 2 != 0) {
             throw new IllegalArgumentException("Invalid encoded string length");
         }
 
-        List<Integer> cards = new ArrayList<>();
+        int count = 0;
+        for (int i = 0; i < length; i += 2) {
+            count += (bytes[i] & 0x80) != 0 ? 2 : 1;
+        }
 
-        for (int i = 0; i < bytes.length; i += 2) {
+        var ordinals = new int[count];
+        int index = 0;
+        for (int i = 0; i < length; i += 2) {
             int high = bytes[i] & 0xFF;
             int low = bytes[i + 1] & 0xFF;
-            int encoded_val = (high << 8) | low;
+            int encodedVal = (high << 8) | low;
 
-            boolean isDouble = (encoded_val & 0x8000) != 0;
-            int cardId = encoded_val & 0x7FFF;
-
-            cards.add(isDouble ? -cardId : cardId);
+            int cardId = encodedVal & 0x7FFF;
+            ordinals[index++] = cardId;
+            if ((encodedVal & 0x8000) != 0) {
+                ordinals[index++] = cardId;
+            }
         }
 
-        return cards;
+        return ordinals;
     }
 
     public static void main(String[] args) {
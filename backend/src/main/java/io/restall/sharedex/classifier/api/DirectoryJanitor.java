@@ -0,0 +1,129 @@
+package io.restall.sharedex.classifier.api;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a directory under a byte budget by deleting the least recently accessed files.
+ * <p>
+ * Access times are tracked in memory rather than relying on filesystem atime. The index is built from a
+ * background scan at startup, files seen before the scan reaches them keep their in-memory access time.
+ */
+@Slf4j
+public class DirectoryJanitor {
+
+    private static final long SWEEP_PERIOD_SECONDS = 60;
+    private static final double SWEEP_TARGET = 0.9;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Map<String, FileEntry> index = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "janitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DirectoryJanitor(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public void start() {
+        executor.execute(this::buildIndex);
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_PERIOD_SECONDS, SWEEP_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdown();
+    }
+
+    public void recordWrite(String filename, long size) {
+        var previous = index.put(filename, new FileEntry(size, System.currentTimeMillis()));
+        totalBytes.addAndGet(previous == null ? size : size - previous.size);
+    }
+
+    public void recordAccess(String filename) {
+        var entry = index.get(filename);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    public long totalBytes() {
+        return totalBytes.get();
+    }
+
+    private void buildIndex() {
+        var start = System.currentTimeMillis();
+        try (var files = Files.newDirectoryStream(dir)) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                var attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                var entry = new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis());
+                if (index.putIfAbsent(name, entry) == null) {
+                    totalBytes.addAndGet(entry.size);
+                }
+            }
+            log.info("Indexed {} files ({} bytes) in {} in {}ms", index.size(), totalBytes.get(), dir,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("Error indexing {}", dir, e);
+        }
+    }
+
+    private void sweep() {
+        try {
+            if (totalBytes.get() <= maxBytes) {
+                return;
+            }
+            var target = (long) (maxBytes * SWEEP_TARGET);
+            var byAccess = new ArrayList<>(index.entrySet());
+            byAccess.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+
+            var deleted = 0;
+            for (var entry : byAccess) {
+                if (totalBytes.get() <= target) {
+                    break;
+                }
+                if (index.remove(entry.getKey(), entry.getValue())) {
+                    Files.deleteIfExists(dir.resolve(entry.getKey()));
+                    totalBytes.addAndGet(-entry.getValue().size);
+                    deleted++;
+                }
+            }
+            log.info("Evicted {} files from {}, now {} bytes", deleted, dir, totalBytes.get());
+        } catch (Exception e) {
+            log.error("Error sweeping {}", dir, e);
+        }
+    }
+
+    private static final class FileEntry {
+        final long size;
+        volatile long lastAccess;
+
+        FileEntry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.restall.sharedex.classifier.api;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloaded images on disk, keyed by normalized url and bounded by total bytes.
+ * <p>
+ * Each image is one file holding its url, ETag and Last-Modified followed by the bytes, named by a hash of the url.
+ * The validators and sizes are indexed in memory in least recently used order, built from the files at startup
+ * oldest first. Files are written to a temp file and moved into place, so a crash never leaves a partial image.
+ * <p>
+ * The index is only accurate if one process uses the directory, so it's locked for the life of the process and a
+ * second process opening it fails. Give each process its own directory.
+ */
+@Slf4j
+public class ImageCache {
+
+    private static final String SUFFIX = ".img";
+    private static final String LOCK_FILE = "cache.lock";
+
+    public record Entry(byte[] bytes, String etag, String lastModified) {
+    }
+
+    private record IndexEntry(long size, String etag, String lastModified) {
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    // Held until the process exits
+    private final FileChannel lockChannel;
+    private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+
+    @SneakyThrows
+    public ImageCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        lockChannel = lock(dir);
+        load();
+    }
+
+    /**
+     * @return the cached image, or null if it isn't cached
+     */
+    public Entry get(String url) {
+        var key = key(url);
+        IndexEntry indexed;
+        synchronized (this) {
+            indexed = index.get(key);
+        }
+        if (indexed == null) {
+            return null;
+        }
+
+        try (var in = new DataInputStream(Files.newInputStream(dir.resolve(key + SUFFIX)))) {
+            readHeader(in);
+            return new Entry(in.readAllBytes(), indexed.etag(), indexed.lastModified());
+        } catch (IOException e) {
+            // Evicted underneath us. A put may have replaced the entry since, so only the entry read is removed
+            remove(key, indexed);
+            return null;
+        }
+    }
+
+    public void put(String url, byte[] bytes, String etag, String lastModified) {
+        if (bytes.length > maxBytes / 16) {
+            return;
+        }
+        var key = key(url);
+        var file = dir.resolve(key + SUFFIX);
+        try {
+            var tmp = Files.createTempFile(dir, ".", ".tmp");
+            try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeUTF(url);
+                out.writeUTF(etag == null ? "" : etag);
+                out.writeUTF(lastModified == null ? "" : lastModified);
+                out.write(bytes);
+            }
+            var size = Files.size(tmp);
+
+            List<String> evicted;
+            synchronized (this) {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                var previous = index.put(key, new IndexEntry(size, etag, lastModified));
+                currentBytes += size - (previous == null ? 0 : previous.size());
+                evicted = evictOverBudget();
+            }
+            delete(evicted);
+        } catch (IOException e) {
+            log.warn("Error caching image: {}", url, e);
+        }
+    }
+
+    /**
+     * Lower cases the scheme and host, drops default ports and fragments, and unescapes the {@code &amp;} that
+     * Reddit's JSON puts in query strings, so the same image is cached once however its url was written.
+     */
+    static String normalize(String url) {
+        var uri = URI.create(url.replace("&amp;", "&"));
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return url;
+        }
+        var scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        var port = uri.getPort();
+        if ((scheme.equals("https") && port == 443) || (scheme.equals("http") && port == 80)) {
+            port = -1;
+        }
+        return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT)
+                + (port == -1 ? "" : ":" + port)
+                + (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath())
+                + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+    }
+
+    @SneakyThrows
+    private static String key(String url) {
+        var digest = MessageDigest.getInstance("SHA-256").digest(normalize(url).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Drops the least recently used entries until the cache is within budget, the caller deletes their files.
+     */
+    private List<String> evictOverBudget() {
+        var evicted = new ArrayList<String>();
+        var it = index.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            var eldest = it.next();
+            currentBytes -= eldest.getValue().size();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    private void delete(List<String> keys) throws IOException {
+        for (var key : keys) {
+            Files.deleteIfExists(dir.resolve(key + SUFFIX));
+        }
+    }
+
+    private synchronized void remove(String key, IndexEntry expected) {
+        if (index.get(key) == expected) {
+            index.remove(key);
+            currentBytes -= expected.size();
+        }
+    }
+
+    private static FileChannel lock(Path dir) throws IOException {
+        var channel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Image cache " + dir + " is already in use by another process");
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private record LoadedFile(Path path, long modified) {
+    }
+
+    private void load() throws IOException {
+        var start = System.nanoTime();
+        var files = new ArrayList<LoadedFile>();
+        try (var stream = Files.newDirectoryStream(dir)) {
+            for (var file : stream) {
+                var name = file.getFileName().toString();
+                if (name.startsWith(".")) {
+                    // Left behind by a write that didn't finish
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    var attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(new LoadedFile(file, attrs.lastModifiedTime().toMillis()));
+                }
+            }
+        }
+        // Oldest first, so the least recently written files are evicted first
+        files.sort(Comparator.comparingLong(LoadedFile::modified));
+
+        List<String> evicted;
+        synchronized (this) {
+            for (var file : files) {
+                try (var in = new DataInputStream(Files.newInputStream(file.path()))) {
+                    var header = readHeader(in);
+                    var name = file.path().getFileName().toString();
+                    var key = name.substring(0, name.length() - SUFFIX.length());
+                    var size = Files.size(file.path());
+                    index.put(key, new IndexEntry(size, header.etag(), header.lastModified()));
+                    currentBytes += size;
+                } catch (NoSuchFileException e) {
+                    // Gone since the directory was listed
+                } catch (IOException e) {
+                    log.warn("Deleting unreadable cached image {}", file.path(), e);
+                    Files.deleteIfExists(file.path());
+                }
+            }
+            // The budget may have been lowered since the files were written
+            evicted = evictOverBudget();
+        }
+        delete(evicted);
+        log.info("Indexed {} cached images, {}MB, in {}ms", index.size(), currentBytes / (1024 * 1024),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static Entry readHeader(DataInputStream in) throws IOException {
+        in.readUTF();
+        var etag = in.readUTF();
+        var lastModified = in.readUTF();
+        return new Entry(null, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+    }
+}
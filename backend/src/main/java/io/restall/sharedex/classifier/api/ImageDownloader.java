@@ -1,20 +1,41 @@
 package io.restall.sharedex.classifier.api;
 
+import io.restall.sharedex.classifier.AppConfig;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
 import java.util.Set;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads images with a single GET, checking the type and size from the response headers.
+ * <p>
+ * The body is read into memory up to {@link #MAX_SIZE} and the download is abandoned as soon as it goes over, so
+ * responses without a content-length can't stream without limit. The body also has to arrive within
+ * {@link #BODY_TIMEOUT}, past which it's closed, so a server trickling bytes can't hold a download open. The client is
+ * shared so connections to a host, multiplexed over HTTP/2 where the server supports it, are reused between downloads.
+ * <p>
+ * With an {@link ImageCache} repeat downloads are served from disk, either straight away so reprocessing can run
+ * offline, or after a conditional request confirms the image hasn't changed.
+ */
 @Slf4j
 public class ImageDownloader {
 
     private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
             .followRedirects(HttpClient.Redirect.NORMAL)
             .connectTimeout(Duration.ofSeconds(10))
             .build();
@@ -27,45 +48,147 @@ public class ImageDownloader {
     );
 
     private static final long MAX_SIZE = 5 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // The request timeout only covers the response headers
+    private static final Duration BODY_TIMEOUT = Duration.ofSeconds(10);
+
+    // Closes bodies that are still being read at their deadline, unblocking a read that's waiting on the server
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "image-download-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Null to always download
+    private final ImageCache cache;
+    // Whether cached images are checked with the server before they're used, if not they're used without a request
+    private final boolean revalidate;
+
+    public ImageDownloader() {
+        this(null, false);
+    }
 
-    @SneakyThrows
-    public BufferedInputStream downloadFile(String uri) {
-        var headRequest = HttpRequest.newBuilder()
-                .uri(URI.create(uri))
-                .method("HEAD", HttpRequest.BodyPublishers.noBody())
-                .build();
-
-        var headResponse = client.send(headRequest, HttpResponse.BodyHandlers.discarding());
-
-        String contentType = headResponse.headers().firstValue("content-type").orElse("");
-        long contentLength = headResponse.headers()
-                .firstValueAsLong("content-length")
-                .orElse(-1);
+    public ImageDownloader(ImageCache cache, boolean revalidate) {
+        this.cache = cache;
+        this.revalidate = revalidate;
+    }
 
-        if (ALLOWED_TYPES.stream().noneMatch(contentType::startsWith)) {
-            log.warn("Disallowed content type: {} for uri: {}", contentType, uri);
-            return null;
+    /**
+     * Caches downloads on disk if a directory is configured for it.
+     */
+    public static ImageDownloader fromConfig(AppConfig appConfig) {
+        if (appConfig.imageCacheDir() == null) {
+            return new ImageDownloader();
         }
+        var cache = new ImageCache(appConfig.imageCacheDir(), appConfig.imageCacheMb() * 1024L * 1024L);
+        return new ImageDownloader(cache, appConfig.imageCacheRevalidate());
+    }
 
-        if (contentLength > MAX_SIZE) {
-            log.warn("File too large: {}bytes for uri: {}", contentType, uri);
-            return null;
+    public BufferedInputStream downloadFile(String uri) {
+        var bytes = download(uri);
+        return bytes == null ? null : new BufferedInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * @return the image's bytes, or null if it couldn't be downloaded, isn't an allowed type or is too large
+     */
+    @SneakyThrows
+    public byte[] download(String uri) {
+        var cached = cache == null ? null : cache.get(uri);
+        if (cached != null && !revalidate) {
+            return cached.bytes();
         }
 
-        HttpRequest getRequest = HttpRequest.newBuilder()
+        var request = HttpRequest.newBuilder()
                 .uri(URI.create(uri))
                 .GET()
-                .timeout(Duration.ofSeconds(2))
-                .build();
+                .timeout(Duration.ofSeconds(2));
+        if (cached != null && cached.etag() != null) {
+            request.header("If-None-Match", cached.etag());
+        }
+        if (cached != null && cached.lastModified() != null) {
+            request.header("If-Modified-Since", cached.lastModified());
+        }
 
-        var getResponse = client.send(getRequest, HttpResponse.BodyHandlers.ofInputStream());
+        var response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        // Closing the body before it's fully read cancels the rest of the download
+        try (var body = response.body()) {
+            if (response.statusCode() == 304 && cached != null) {
+                return cached.bytes();
+            }
+            if (response.statusCode() != 200) {
+                log.warn("Unexpected response code: {} for uri: {}", response.statusCode(), uri);
+                return null;
+            }
+
+            String contentType = response.headers().firstValue("content-type").orElse("");
+            long contentLength = response.headers()
+                    .firstValueAsLong("content-length")
+                    .orElse(-1);
+
+            if (ALLOWED_TYPES.stream().noneMatch(contentType::startsWith)) {
+                log.warn("Disallowed content type: {} for uri: {}", contentType, uri);
+                return null;
+            }
+
+            if (contentLength > MAX_SIZE) {
+                log.warn("File too large: {}bytes for uri: {}", contentLength, uri);
+                return null;
+            }
+
+            byte[] bytes;
+            try {
+                bytes = readCapped(body, contentLength);
+            } catch (HttpTimeoutException e) {
+                log.warn("Body not received within {}s for uri: {}", BODY_TIMEOUT.toSeconds(), uri);
+                return null;
+            }
+            if (bytes == null) {
+                log.warn("File too large: over {}bytes for uri: {}", MAX_SIZE, uri);
+            } else if (cache != null) {
+                cache.put(uri, bytes, response.headers().firstValue("etag").orElse(null),
+                        response.headers().firstValue("last-modified").orElse(null));
+            }
+            return bytes;
+        }
+    }
 
-        if (getResponse.statusCode() != 200) {
-            log.warn("Unexpected response code: {} for uri: {}", getResponse.statusCode(), uri);
+    /**
+     * Reads the whole stream, or returns null as soon as more than {@link #MAX_SIZE} bytes have been read.
+     *
+     * @throws HttpTimeoutException if the stream isn't fully read within {@link #BODY_TIMEOUT}
+     */
+    private static byte[] readCapped(InputStream in, long contentLength) throws IOException {
+        var deadline = System.nanoTime() + BODY_TIMEOUT.toNanos();
+        var closer = deadlines.schedule(() -> {
+            in.close();
             return null;
+        }, BODY_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+        try {
+            var out = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : CHUNK_SIZE);
+            var chunk = new byte[CHUNK_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new HttpTimeoutException("Body not received in time");
+                }
+                total += read;
+                if (total > MAX_SIZE) {
+                    return null;
+                }
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            if (System.nanoTime() - deadline > 0 && !(e instanceof HttpTimeoutException)) {
+                // Closed by the deadline while waiting for the server
+                throw new HttpTimeoutException("Body not received in time");
+            }
+            throw e;
+        } finally {
+            closer.cancel(false);
         }
-
-        return new BufferedInputStream(getResponse.body());
     }
 
 }
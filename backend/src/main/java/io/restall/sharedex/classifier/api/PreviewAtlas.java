@@ -0,0 +1,236 @@
+package io.restall.sharedex.classifier.api;
+
+import io.restall.sharedex.classifier.AppConfig;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Packed, memory-mapped file of card tiles already scaled to preview resolution.
+ * <p>
+ * Layout: magic, tile width, tile height, tile count, then for each tile its card id, offset and length,
+ * followed by the PNG encoded tiles. Tiles are decoded on first use and kept in a bounded LRU.
+ */
+@Slf4j
+public class PreviewAtlas {
+
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private static final int MAGIC = 0x50415431; // PAT1
+    private static final Scalar BG_COLOUR = new Scalar(113, 116, 120);
+
+    private final MappedByteBuffer data;
+    private final Map<String, long[]> index;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final String version;
+    private final Map<String, Mat> tiles;
+    // Drawn for cards that are newer than the atlas
+    private final Mat placeholder;
+
+    @SneakyThrows
+    public PreviewAtlas(Path atlasPath, int cacheSize) {
+        try (var channel = FileChannel.open(atlasPath, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        var crc = new CRC32();
+        crc.update(data.duplicate());
+        version = Long.toHexString(crc.getValue());
+
+        if (data.getInt() != MAGIC) {
+            throw new IOException("Not a preview atlas: " + atlasPath);
+        }
+        tileWidth = data.getInt();
+        tileHeight = data.getInt();
+        var count = data.getInt();
+
+        index = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            var nameBytes = new byte[data.getShort()];
+            data.get(nameBytes);
+            index.put(new String(nameBytes, StandardCharsets.UTF_8), new long[]{data.getLong(), data.getInt()});
+        }
+
+        placeholder = new Mat(tileHeight, tileWidth, tileType(), BG_COLOUR);
+
+        // Evicted Mats are not released here as a render may still be copying from them, their native memory is
+        // freed once they are garbage collected
+        tiles = Collections.synchronizedMap(new LinkedHashMap<String, Mat>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Mat> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public int tileWidth() {
+        return tileWidth;
+    }
+
+    public int tileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * @return checksum of the atlas file, which changes whenever the tiles are regenerated differently
+     */
+    public String version() {
+        return version;
+    }
+
+    public int tileType() {
+        return CvType.CV_8UC3;
+    }
+
+    /**
+     * @return the decoded tile for the card, or a blank tile if the atlas doesn't contain it
+     */
+    public Mat getTile(String cardId) {
+        var tile = tiles.get(cardId);
+        if (tile != null) {
+            return tile;
+        }
+
+        var entry = index.get(cardId);
+        if (entry == null) {
+            log.warn("Card {} isn't in the preview atlas, regenerate it to include new cards", cardId);
+            return placeholder;
+        }
+
+        var encoded = new byte[(int) entry[1]];
+        data.slice((int) entry[0], encoded.length).get(encoded);
+
+        var buf = new MatOfByte(encoded);
+        try {
+            tile = Imgcodecs.imdecode(buf, Imgcodecs.IMREAD_COLOR);
+        } finally {
+            buf.release();
+        }
+        tiles.put(cardId, tile);
+        return tile;
+    }
+
+    @SneakyThrows
+    public static void write(Path cardImageDir, Path atlasPath) {
+        var cardPaths = Files.list(cardImageDir)
+                .filter(p -> {
+                    String name = p.getFileName().toString().toLowerCase();
+                    return name.endsWith(".jpg") || name.endsWith(".jpeg") ||
+                            name.endsWith(".png") || name.endsWith(".bmp") ||
+                            name.endsWith(".webp");
+                })
+                .sorted()
+                .toList();
+
+        if (cardPaths.isEmpty()) {
+            throw new IOException("No card images in " + cardImageDir);
+        }
+
+        // Previews are rendered at half the size of the source card images, which all share the first card's size
+        var reference = Imgcodecs.imread(cardPaths.getFirst().toString(), Imgcodecs.IMREAD_UNCHANGED);
+        var tileSize = new Size(reference.cols() / 2, reference.rows() / 2);
+        reference.release();
+
+        var names = new ArrayList<String>(cardPaths.size());
+        var encodedTiles = new ArrayList<byte[]>(cardPaths.size());
+        for (var path : cardPaths) {
+            var src = Imgcodecs.imread(path.toString(), Imgcodecs.IMREAD_UNCHANGED);
+            var bgr = replaceTransparent(src, BG_COLOUR);
+            var tile = new Mat();
+            Imgproc.resize(bgr, tile, tileSize, 0, 0, Imgproc.INTER_AREA);
+
+            var buf = new MatOfByte();
+            Imgcodecs.imencode(".png", tile, buf);
+            names.add(cardIdFromPath(path));
+            encodedTiles.add(buf.toArray());
+
+            buf.release();
+            tile.release();
+            bgr.release();
+            src.release();
+        }
+
+        if (atlasPath.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(atlasPath.toAbsolutePath().getParent());
+        }
+
+        var nameBytes = names.stream().map(name -> name.getBytes(StandardCharsets.UTF_8)).toList();
+        long offset = 16;
+        for (var bytes : nameBytes) {
+            offset += 2 + bytes.length + 8 + 4;
+        }
+
+        try (var dos = new DataOutputStream(Files.newOutputStream(atlasPath))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt((int) tileSize.width);
+            dos.writeInt((int) tileSize.height);
+            dos.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                dos.writeShort(nameBytes.get(i).length);
+                dos.write(nameBytes.get(i));
+                dos.writeLong(offset);
+                dos.writeInt(encodedTiles.get(i).length);
+                offset += encodedTiles.get(i).length;
+            }
+            for (var tile : encodedTiles) {
+                dos.write(tile);
+            }
+        }
+    }
+
+    private static String cardIdFromPath(Path cardFilePath) {
+        var filename = cardFilePath.getFileName().toString();
+        return filename.substring(0, filename.indexOf('.'));
+    }
+
+    private static Mat replaceTransparent(Mat src, Scalar bgColorBGR) {
+        // If there's no alpha channel, just return a copy
+        if (src.channels() < 4) {
+            return src.clone();
+        }
+
+        // Split channels: [B, G, R, A]
+        List<Mat> chans = new ArrayList<>();
+        Core.split(src, chans);
+
+        Mat alpha = chans.get(3);
+
+        Mat mask = new Mat();
+        Imgproc.threshold(alpha, mask, 0, 255, Imgproc.THRESH_BINARY_INV);
+
+        Mat bgr = new Mat();
+        Core.merge(Arrays.asList(chans.get(0), chans.get(1), chans.get(2)), bgr);
+
+        bgr.setTo(bgColorBGR, mask);
+
+        chans.forEach(Mat::release);
+        mask.release();
+
+        return bgr;
+    }
+
+    public static void main(String[] args) {
+        var start = System.currentTimeMillis();
+        var config = AppConfig.fromEnv();
+
+        write(config.cardImageDir(), config.previewAtlasPath());
+
+        System.out.printf("Generated and Saved Preview Atlas. Took: %sms%n", System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,98 @@
+package io.restall.sharedex.classifier.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU of encoded preview images bounded by total bytes.
+ * <p>
+ * Freshly rendered previews are always cached. Previews read from disk are only admitted once they've
+ * missed twice recently, so a crawler walking every deck can't flush the hot entries.
+ */
+public class PreviewCache {
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> recentMisses;
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder memoryBytesServed = new LongAdder();
+    private final LongAdder diskBytesServed = new LongAdder();
+
+    public PreviewCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 16;
+        this.recentMisses = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > 4096;
+            }
+        };
+    }
+
+    public synchronized byte[] get(String deckId) {
+        var bytes = entries.get(deckId);
+        if (bytes == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return bytes;
+    }
+
+    public synchronized void put(String deckId, byte[] bytes) {
+        if (bytes.length > maxEntryBytes) {
+            return;
+        }
+        var previous = entries.put(deckId, bytes);
+        if (previous != null) {
+            currentBytes -= previous.length;
+        }
+        currentBytes += bytes.length;
+        recentMisses.remove(deckId);
+
+        var it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Records a read from disk.
+     *
+     * @return true if the preview has been read from disk recently enough that it should now be cached
+     */
+    public synchronized boolean shouldAdmit(String deckId, long size) {
+        if (size > maxEntryBytes) {
+            return false;
+        }
+        return recentMisses.put(deckId, Boolean.TRUE) != null;
+    }
+
+    public void recordServed(long bytes, boolean fromMemory) {
+        (fromMemory ? memoryBytesServed : diskBytesServed).add(bytes);
+    }
+
+    public synchronized Stats stats() {
+        var hitCount = hits.sum();
+        var total = hitCount + misses.sum();
+        return new Stats(
+                hitCount,
+                misses.sum(),
+                total == 0 ? 0.0 : (double) hitCount / total,
+                entries.size(),
+                currentBytes,
+                memoryBytesServed.sum(),
+                diskBytesServed.sum()
+        );
+    }
+
+    public record Stats(long hits, long misses, double hitRatio, int entries, long cachedBytes,
+                        long memoryBytesServed, long diskBytesServed) {
+    }
+}
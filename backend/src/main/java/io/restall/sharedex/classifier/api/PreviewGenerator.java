@@ -2,118 +2,131 @@ package io.restall.sharedex.classifier.api;
 
 import io.restall.sharedex.classifier.AppConfig;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.UUID;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+@Slf4j
 public class PreviewGenerator {
 
     static {
         nu.pattern.OpenCV.loadLocally();
     }
 
-    private final Map<String, Mat> cardImages;
+    private static final int COLUMNS = 5;
+    private static final int ROWS = 4;
+    // Atlas tiles are already at preview resolution, so padding is half of the full size 20px
+    private static final int PADDING = 10;
+    static final String TMP_PREFIX = ".render-";
+    // Bump when the layout or encoding changes so previews rendered by an older version aren't served
+    private static final int RENDER_VERSION = 1;
+    private static final String VERSION_FILE = ".version";
+
+    private final PreviewAtlas atlas;
 
-    private final Mat colPad;
-    private final Mat rowPad;
     private final Scalar bgColour;
     private final Path previewDir;
+    private final String version;
+    private final Rect[] tileRegions;
+    private final ThreadLocal<Mat> canvas;
 
     private final MatOfInt compression = new MatOfInt(
             Imgcodecs.IMWRITE_WEBP_QUALITY, 30
     );
 
-    @SneakyThrows
     public PreviewGenerator(AppConfig config) {
         bgColour = new Scalar(113, 116, 120);
         previewDir = config.previewDir();
+        atlas = new PreviewAtlas(config.previewAtlasPath(), config.previewTileCacheSize());
+        version = RENDER_VERSION + "." + atlas.version();
+        deleteStalePreviews();
+
+        int height = atlas.tileHeight();
+        int width = atlas.tileWidth();
+
+        tileRegions = new Rect[COLUMNS * ROWS];
+        for (int i = 0; i < tileRegions.length; i++) {
+            int x = PADDING + (i % COLUMNS) * (width + PADDING);
+            int y = PADDING + (i / COLUMNS) * (height + PADDING);
+            tileRegions[i] = new Rect(x, y, width, height);
+        }
 
-        cardImages = Files.list(config.cardImageDir())
-                .filter(p -> {
-                    String name = p.getFileName().toString().toLowerCase();
-                    return name.endsWith(".jpg") || name.endsWith(".jpeg") ||
-                            name.endsWith(".png") || name.endsWith(".bmp") ||
-                            name.endsWith(".webp");
-                })
-                .collect(Collectors.toMap(
-                        PreviewGenerator::cardIdFromPath,
-                        path -> replaceTransparent(Imgcodecs.imread(path.toString(), Imgcodecs.IMREAD_UNCHANGED), bgColour)
-                ));
-
-        int paddingSize = 20;
-        int height = cardImages.get("A1-1").rows();
-        int type = cardImages.get("A1-1").type();
-        int width = cardImages.get("A1-1").cols();
-
-        colPad = new Mat(height, paddingSize, type, bgColour);
-        rowPad = new Mat(paddingSize, width * 5 + 6 * paddingSize, type, bgColour);
+        // Each render thread keeps its own canvas. The padding is painted once and every render overwrites all
+        // the tile regions, so nothing needs clearing between decks
+        int canvasWidth = width * COLUMNS + (COLUMNS + 1) * PADDING;
+        int canvasHeight = height * ROWS + (ROWS + 1) * PADDING;
+        canvas = ThreadLocal.withInitial(() -> new Mat(canvasHeight, canvasWidth, atlas.tileType(), bgColour));
     }
 
-    private static String cardIdFromPath(Path cardFilePath) {
-        var filename = cardFilePath.getFileName().toString();
-        return filename.substring(0, filename.indexOf('.'));
+    /**
+     * @return identifies the render code and atlas, previews from different versions may look different
+     */
+    public String version() {
+        return version;
     }
 
-    public void generatePreview(List<String> cardIds, String deckId) {
+    /**
+     * Renders the preview and atomically moves it into the preview dir, so readers never see a partial file.
+     *
+     * @return the encoded WebP, or null if the deck isn't 20 cards
+     */
+    @SneakyThrows
+    public byte[] generatePreview(List<String> cardIds, String deckId) {
         if (cardIds.size() != 20) {
-            return;
+            return null;
         }
-        var rows = new ArrayList<Mat>(9);
-        rows.add(rowPad);
-        for (int i = 0; i < 4; i++) {
-            rows.add(drawRow(cardIds.subList(i * 5, Math.min((i + 1) * 5, 20))));
-            rows.add(rowPad);
+        var allCards = canvas.get();
+        for (int i = 0; i < tileRegions.length; i++) {
+            var region = allCards.submat(tileRegions[i]);
+            atlas.getTile(cardIds.get(i)).copyTo(region);
+            region.release();
         }
 
-        var allCards = new Mat();
-        Core.vconcat(rows, allCards);
-
-        Imgproc.resize(allCards, allCards, new Size(allCards.width() / 2, allCards.height() / 2));
-
-        Imgcodecs.imwrite(previewDir.resolve(deckId + ".webp").toString(), allCards, compression);
-    }
-
-    private Mat drawRow(List<String> ids) {
-        var rowImages = new ArrayList<Mat>(11);
-        rowImages.add(colPad);
-        for (int i = 0; i < 5; i++) {
-            rowImages.add(cardImages.get(ids.get(i)));
-            rowImages.add(colPad);
+        var buf = new MatOfByte();
+        byte[] encoded;
+        try {
+            Imgcodecs.imencode(".webp", allCards, buf, compression);
+            encoded = buf.toArray();
+        } finally {
+            buf.release();
         }
 
-        var row = new Mat();
-        Core.hconcat(rowImages, row);
-        return row;
+        var tmp = previewDir.resolve(TMP_PREFIX + UUID.randomUUID());
+        try {
+            Files.write(tmp, encoded);
+            Files.move(tmp, previewDir.resolve(deckId + ".webp"), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return encoded;
     }
 
-    private static Mat replaceTransparent(Mat src, Scalar bgColorBGR) {
-        // If there's no alpha channel, just return a copy
-        if (src.channels() < 4) {
-            return src.clone();
+    /**
+     * Previews on disk are named by deck id only, so any rendered by a different version are deleted at startup.
+     * Runs before the janitor indexes the directory.
+     */
+    @SneakyThrows
+    private void deleteStalePreviews() {
+        var versionFile = previewDir.resolve(VERSION_FILE);
+        if (Files.exists(versionFile) && Files.readString(versionFile).equals(version)) {
+            return;
         }
-
-        // Split channels: [B, G, R, A]
-        List<Mat> chans = new ArrayList<>();
-        Core.split(src, chans);
-
-        Mat alpha = chans.get(3);
-
-        Mat mask = new Mat();
-        Imgproc.threshold(alpha, mask, 0, 255, Imgproc.THRESH_BINARY_INV);
-
-        Mat bgr = new Mat();
-        Core.merge(Arrays.asList(chans.get(0), chans.get(1), chans.get(2)), bgr);
-
-        bgr.setTo(bgColorBGR, mask);
-
-        return bgr;
+        var deleted = 0;
+        try (var files = Files.newDirectoryStream(previewDir, "*.webp")) {
+            for (var file : files) {
+                Files.deleteIfExists(file);
+                deleted++;
+            }
+        }
+        Files.writeString(versionFile, version);
+        log.info("Deleted {} previews rendered by an older version, now {}", deleted, version);
     }
 }
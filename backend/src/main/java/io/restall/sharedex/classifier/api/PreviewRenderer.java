@@ -0,0 +1,194 @@
+package io.restall.sharedex.classifier.api;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules preview renders so that each deck is only rendered once at a time and interactive requests
+ * are picked up before background pre-renders.
+ * <p>
+ * The queue is bounded, a render that doesn't fit fails with a {@link RejectedExecutionException}. Interactive
+ * tickets whose waiters have all given up are moved to the back of the queue as background renders.
+ */
+@Slf4j
+public class PreviewRenderer {
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    // How long an interactive request waits for its render
+    public static final Duration INTERACTIVE_WAIT = Duration.ofSeconds(2);
+
+    private final PreviewGenerator previewGenerator;
+    private final PreviewCache previewCache;
+    private final DirectoryJanitor previewJanitor;
+    private final ThreadPoolExecutor executor;
+    private final int maxQueued;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, RenderJob> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public PreviewRenderer(PreviewGenerator previewGenerator, PreviewCache previewCache,
+                           DirectoryJanitor previewJanitor, int threads, int maxQueued) {
+        this.previewGenerator = previewGenerator;
+        this.previewCache = previewCache;
+        this.previewJanitor = previewJanitor;
+        this.maxQueued = maxQueued;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+    }
+
+    /**
+     * Queues a render of the deck, joining any render already queued or running for the same deck id.
+     * Interactive callers are expected to wait up to {@link #INTERACTIVE_WAIT} for it.
+     *
+     * @return future completing with the encoded WebP, or null if the deck couldn't be rendered. Fails with a
+     * {@link RejectedExecutionException} if the queue is full
+     */
+    public CompletableFuture<byte[]> render(String deckId, List<String> cardIds, Priority priority) {
+        var created = new boolean[1];
+        var job = inFlight.computeIfAbsent(deckId, id -> {
+            created[0] = true;
+            return new RenderJob(deckId, cardIds);
+        });
+
+        // An interactive request for a deck already queued in the background gets a second, higher priority
+        // ticket for the same job; whichever ticket is dequeued first does the render
+        var enqueued = true;
+        if (priority == Priority.INTERACTIVE) {
+            job.interactiveDeadline.accumulateAndGet(System.nanoTime() + INTERACTIVE_WAIT.toNanos(), Math::max);
+            if (job.interactiveQueued.compareAndSet(false, true)) {
+                enqueued = enqueue(job, priority);
+                if (!enqueued) {
+                    job.interactiveQueued.set(false);
+                }
+            }
+        } else if (created[0]) {
+            job.backgroundQueued.set(true);
+            enqueued = enqueue(job, priority);
+        }
+
+        if (!enqueued) {
+            if (created[0]) {
+                reject(job);
+            }
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Preview render queue is full"));
+        }
+        return job.result;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private boolean enqueue(RenderJob job, Priority priority) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(new RenderTicket(job, priority, sequence.getAndIncrement()));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // Shut down
+            queued.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void reject(RenderJob job) {
+        inFlight.remove(job.deckId, job);
+        job.result.completeExceptionally(new RejectedExecutionException("Preview render queue is full"));
+    }
+
+    /**
+     * Called when an interactive ticket is dequeued after its last waiter gave up. The render is still worth
+     * having, so it's queued again behind the other background renders unless a background ticket already is.
+     */
+    private void deprioritise(RenderJob job) {
+        job.interactiveQueued.set(false);
+        if (job.interactiveDeadline.get() - System.nanoTime() > 0) {
+            // Someone started waiting again in the meantime
+            run(job);
+            return;
+        }
+        if (job.claimed.get() || !job.backgroundQueued.compareAndSet(false, true)) {
+            return;
+        }
+        if (!enqueue(job, Priority.BACKGROUND)) {
+            reject(job);
+        }
+    }
+
+    private void run(RenderJob job) {
+        if (!job.claimed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            var encoded = previewGenerator.generatePreview(job.cardIds, job.deckId);
+            if (encoded != null) {
+                previewCache.put(job.deckId, encoded);
+                previewJanitor.recordWrite(job.deckId + ".webp", encoded.length);
+            }
+            job.result.complete(encoded);
+        } catch (Exception e) {
+            log.error("Error rendering preview for deck: {}", job.deckId, e);
+            job.result.completeExceptionally(e);
+        } finally {
+            inFlight.remove(job.deckId, job);
+        }
+    }
+
+    private static final class RenderJob {
+        final String deckId;
+        final List<String> cardIds;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final AtomicBoolean interactiveQueued = new AtomicBoolean();
+        final AtomicBoolean backgroundQueued = new AtomicBoolean();
+        // System.nanoTime() the last interactive waiter gives up at
+        final AtomicLong interactiveDeadline = new AtomicLong();
+
+        RenderJob(String deckId, List<String> cardIds) {
+            this.deckId = deckId;
+            this.cardIds = cardIds;
+        }
+    }
+
+    private final class RenderTicket implements Runnable, Comparable<RenderTicket> {
+        final RenderJob job;
+        final Priority priority;
+        final long seq;
+
+        RenderTicket(RenderJob job, Priority priority, long seq) {
+            this.job = job;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            if (priority == Priority.INTERACTIVE && job.interactiveDeadline.get() - System.nanoTime() <= 0) {
+                deprioritise(job);
+            } else {
+                PreviewRenderer.this.run(job);
+            }
+        }
+
+        @Override
+        public int compareTo(RenderTicket other) {
+            var byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(seq, other.seq);
+        }
+    }
+}
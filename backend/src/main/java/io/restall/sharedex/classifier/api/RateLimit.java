@@ -0,0 +1,29 @@
+package io.restall.sharedex.classifier.api;
+
+import java.time.Duration;
+
+/**
+ * A token bucket limit: {@code capacity} requests per {@code period}, refilled continuously.
+ * Parsed from env values of the form {@code <capacity>/<seconds>}, e.g. {@code 1/15}.
+ */
+public record RateLimit(int capacity, Duration period) {
+
+    public RateLimit {
+        if (capacity <= 0 || capacity > RateLimiter.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Rate limit capacity must be between 1 and " + RateLimiter.MAX_CAPACITY + ", got: " + capacity);
+        }
+        if (period.toMillis() <= 0) {
+            throw new IllegalArgumentException("Rate limit period must be positive, got: " + period);
+        }
+    }
+
+    public static RateLimit parse(String value) {
+        var slash = value.indexOf('/');
+        if (slash == -1) {
+            throw new IllegalArgumentException("Rate limit must be in the form <capacity>/<seconds>, got: " + value);
+        }
+        var capacity = Integer.parseInt(value.substring(0, slash).trim());
+        var seconds = Long.parseLong(value.substring(slash + 1).trim());
+        return new RateLimit(capacity, Duration.ofSeconds(seconds));
+    }
+}
@@ -0,0 +1,81 @@
+package io.restall.sharedex.classifier.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock-free token bucket rate limiter.
+ * <p>
+ * Keys are hashed onto a fixed number of buckets so memory never grows with the number of distinct clients.
+ * Each bucket is a single long holding the time of the last refill (upper 40 bits, ms since the limiter was
+ * created) and the remaining tokens in thousandths (lower 24 bits), updated with a CAS.
+ * <p>
+ * Clients that collide on a bucket share its allowance, which errs on the side of limiting.
+ */
+public class RateLimiter {
+
+    static final int MAX_CAPACITY = 16_000;
+
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1000;
+
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final long maxTokens;
+    private final long periodMillis;
+    private final long epoch = System.currentTimeMillis();
+
+    public RateLimiter(RateLimit limit, int bucketCount) {
+        if (Integer.bitCount(bucketCount) != 1) {
+            throw new IllegalArgumentException("Bucket count must be a power of two, got: " + bucketCount);
+        }
+        this.buckets = new AtomicLongArray(bucketCount);
+        this.mask = bucketCount - 1;
+        this.maxTokens = limit.capacity() * ONE_TOKEN;
+        this.periodMillis = limit.period().toMillis();
+    }
+
+    public RateLimiter(RateLimit limit) {
+        this(limit, 4096);
+    }
+
+    /**
+     * Takes a token from the bucket for {@code key}.
+     *
+     * @return true if the request is allowed, false if the bucket is empty
+     */
+    public boolean tryAcquire(String key) {
+        var index = spread(key.hashCode()) & mask;
+        // +1 so that a live bucket is never 0, which marks an unused (full) bucket
+        var now = System.currentTimeMillis() - epoch + 1;
+
+        while (true) {
+            var state = buckets.get(index);
+
+            long tokens;
+            if (state == 0) {
+                tokens = maxTokens;
+            } else {
+                var elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+                var refill = elapsed >= periodMillis ? maxTokens : elapsed * maxTokens / periodMillis;
+                tokens = Math.min(maxTokens, (state & TOKEN_MASK) + refill);
+            }
+
+            if (tokens < ONE_TOKEN) {
+                return false;
+            }
+
+            var updated = (now << TOKEN_BITS) | (tokens - ONE_TOKEN);
+            if (buckets.compareAndSet(index, state, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
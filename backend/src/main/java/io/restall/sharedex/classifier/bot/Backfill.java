@@ -0,0 +1,223 @@
+package io.restall.sharedex.classifier.bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.restall.sharedex.classifier.AppConfig;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+
+/**
+ * Walks back through older posts with {@code after=} pagination to fill the deck store on a new deployment.
+ * <p>
+ * Each page's posts are classified in parallel while the next page is fetched, then stored with one batched write
+ * for the posts and one for the decks. The position is checkpointed after every stored page, so a stopped backfill
+ * resumes from the next page. Listing requests and image downloads are paced to their per minute limits, the image
+ * rate doubles as the throughput target that progress is reported against.
+ * <p>
+ * Reddit only lists roughly the newest 1000 posts of a subreddit, the backfill stops when it runs out of pages.
+ */
+@Slf4j
+public class Backfill {
+
+    private static final String SUBREDDIT = "ptcgp";
+    private static final int PAGE_SIZE = 100;
+
+    private static final String AFTER = "after";
+    private static final String COMPLETE = "complete";
+    private static final String PAGES = "pages";
+    private static final String POSTS = "posts";
+    private static final String DECKS = "decks";
+
+    /**
+     * @param until    stop at posts older than this, or null to go as far back as Reddit allows
+     * @param maxPages pages to fetch in this run, 0 for no limit
+     */
+    public record Settings(Path checkpointPath, int listingsPerMinute, int imagesPerMinute, Instant until,
+                           int maxPages) {
+    }
+
+    private final RedditClient redditClient;
+    private final DeckRepository deckRepo;
+    private final ImageClassifier imageClassifier;
+    private final Settings settings;
+    private final Pacer listingPacer;
+    private final Pacer imagePacer;
+    private final ExecutorService fetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public Backfill(RedditClient redditClient, DeckRepository deckRepo, ImageClassifier imageClassifier,
+                    Settings settings) {
+        this.redditClient = redditClient;
+        this.deckRepo = deckRepo;
+        this.imageClassifier = imageClassifier;
+        this.settings = settings;
+        this.listingPacer = new Pacer(settings.listingsPerMinute());
+        this.imagePacer = new Pacer(settings.imagesPerMinute());
+    }
+
+    @SneakyThrows
+    public void run() {
+        var checkpoint = readCheckpoint();
+        if (Boolean.parseBoolean(checkpoint.getProperty(COMPLETE))) {
+            log.info("Backfill already complete, delete {} to run it again", settings.checkpointPath());
+            return;
+        }
+
+        var after = checkpoint.getProperty(AFTER);
+        log.info("Starting backfill {}", after == null ? "from the newest post" : "after post " + after);
+
+        var start = System.nanoTime();
+        var images = 0L;
+        var next = fetch(after);
+        try {
+            for (int page = 0; settings.maxPages() == 0 || page < settings.maxPages(); page++) {
+                var listing = next.join();
+                // Fetch the next page while this one is classified
+                next = listing.after() == null ? null : fetch(listing.after());
+
+                var posts = listing.posts().stream()
+                        .filter(post -> settings.until() == null || !post.created().isBefore(settings.until()))
+                        .sorted(Comparator.comparing(RedditPost::created))
+                        .toList();
+                var reachedUntil = posts.size() < listing.posts().size();
+
+                var classifying = new ArrayList<CompletableFuture<ClassifiedPost>>(posts.size());
+                for (var post : posts) {
+                    var imageCount = ImageClassifier.imageUrls(post).size();
+                    imagePacer.acquire(imageCount);
+                    images += imageCount;
+                    classifying.add(imageClassifier.classifyAsync(post));
+                }
+                var classified = classifying.stream().map(CompletableFuture::join).toList();
+
+                var decks = classified.stream()
+                        .flatMap(result -> result.deckIds().stream()
+                                .map(deckId -> new PendingDeck(deckId, result.post().id())))
+                        .toList();
+                deckRepo.insertPosts(classified);
+                deckRepo.insertDecks(decks);
+
+                var complete = listing.after() == null || reachedUntil;
+                writeCheckpoint(checkpoint, listing.after(), complete, posts.size(), decks.size());
+
+                var minutes = (System.nanoTime() - start) / (double) TimeUnit.MINUTES.toNanos(1);
+                log.info("Backfilled page {}: {} posts, {} decks, {} images/min against a target of {}",
+                        checkpoint.getProperty(PAGES), posts.size(), decks.size(),
+                        Math.round(images / minutes), settings.imagesPerMinute());
+
+                if (complete) {
+                    log.info("Backfill complete: {} posts, {} decks", checkpoint.getProperty(POSTS),
+                            checkpoint.getProperty(DECKS));
+                    break;
+                }
+            }
+        } finally {
+            if (next != null) {
+                next.cancel(true);
+            }
+            fetchExecutor.shutdown();
+        }
+    }
+
+    private CompletableFuture<RedditListing> fetch(String after) {
+        return CompletableFuture.supplyAsync(() -> {
+            listingPacer.acquire(1);
+            return redditClient.getOlder(SUBREDDIT, after, PAGE_SIZE);
+        }, fetchExecutor);
+    }
+
+    @SneakyThrows
+    private Properties readCheckpoint() {
+        var checkpoint = new Properties();
+        if (Files.exists(settings.checkpointPath())) {
+            try (var in = Files.newBufferedReader(settings.checkpointPath())) {
+                checkpoint.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Written to a temp file and moved into place, so a crash leaves either the old or the new checkpoint.
+     */
+    @SneakyThrows
+    private void writeCheckpoint(Properties checkpoint, String after, boolean complete, int posts, int decks) {
+        if (after != null) {
+            checkpoint.setProperty(AFTER, after);
+        }
+        checkpoint.setProperty(COMPLETE, Boolean.toString(complete));
+        increment(checkpoint, PAGES, 1);
+        increment(checkpoint, POSTS, posts);
+        increment(checkpoint, DECKS, decks);
+
+        var path = settings.checkpointPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = Files.newBufferedWriter(tmp)) {
+            checkpoint.store(out, "Backfill progress");
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void increment(Properties checkpoint, String key, long amount) {
+        var current = Long.parseLong(checkpoint.getProperty(key, "0"));
+        checkpoint.setProperty(key, Long.toString(current + amount));
+    }
+
+    /**
+     * Spaces out permits evenly to stay under a per minute rate, 0 for no limit.
+     */
+    private static class Pacer {
+
+        private final long intervalNanos;
+        private long nextFree = System.nanoTime();
+
+        Pacer(int perMinute) {
+            intervalNanos = perMinute <= 0 ? 0 : TimeUnit.MINUTES.toNanos(1) / perMinute;
+        }
+
+        @SneakyThrows
+        void acquire(int permits) {
+            long wait;
+            synchronized (this) {
+                var now = System.nanoTime();
+                nextFree = Math.max(nextFree, now);
+                wait = nextFree - now;
+                nextFree += intervalNanos * permits;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var appConfig = AppConfig.fromEnv();
+
+        var om = new ObjectMapper();
+        om.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+        om.registerModule(new JavaTimeModule());
+
+        var redditClient = new RedditClient(om, appConfig.redditBaseUrl());
+        var settings = new Settings(appConfig.backfillCheckpointPath(), appConfig.backfillListingsPerMinute(),
+                appConfig.backfillImagesPerMinute(), appConfig.backfillUntil(), appConfig.backfillMaxPages());
+
+        try (var deckRepo = DeckRepository.fromConfig(appConfig);
+             var imageClassifier = ImageClassifier.fromConfig(appConfig)) {
+            new Backfill(redditClient, deckRepo, imageClassifier, settings).run();
+        }
+    }
+}
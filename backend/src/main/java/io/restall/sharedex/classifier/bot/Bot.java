@@ -1,109 +1,235 @@
 package io.restall.sharedex.classifier.bot;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.restall.sharedex.classifier.AppConfig;
-import io.restall.sharedex.classifier.ColourPHashMatcher;
-import io.restall.sharedex.classifier.MatchFinder;
-import io.restall.sharedex.classifier.api.DeckCompressor;
-import io.restall.sharedex.classifier.api.ImageDownloader;
-import io.restall.sharedex.classifier.opencv.PokemonCardRecognizer;
-import io.restall.sharedex.classifier.opencv.Prediction;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
-import static java.util.Collections.emptyList;
 
 @Slf4j
 public class Bot {
 
     private final RedditClient redditClient;
     private final DeckRepository postRepo;
-    private final ImageDownloader imageDownloader;
-    private final MatchFinder matchFinder;
-    private final DeckCompressor deckCompressor;
-
-    private Deque<String> latestIds;
+    private final DeckWriteBatcher deckWriter;
+    private final ImageClassifier imageClassifier;
+    private final Path cursorPath;
+
+    // Recently handled post ids, bounded so it can't grow forever
+    private final Set<String> seen = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    });
+    // Id of the newest post handled, the next poll only asks Reddit for posts after it. Saved after every poll
+    private String cursor;
+    // Posts that failed to be classified or stored, by the number of times they've failed
+    private final Map<String, Integer> failedAttempts = new HashMap<>();
+    private long pollDelaySeconds = MIN_POLL_DELAY_SECONDS;
     private ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
-    private static final int LOOP_PERIOD_MINUTES = 5;
-
-    public Bot(RedditClient redditClient, DeckRepository postRepo, ImageDownloader imageDownloader,
-               MatchFinder matchFinder, DeckCompressor deckCompressor) {
+    private static final String SUBREDDIT = "ptcgp";
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_CATCH_UP_PAGES = 10;
+    private static final int SEEN_CAPACITY = 5000;
+    private static final long MIN_POLL_DELAY_SECONDS = 30;
+    private static final long MAX_POLL_DELAY_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    // A poll with at least this many new posts is busy enough to poll again as soon as possible
+    private static final int BUSY_POLL_POSTS = 10;
+    // A failed post holds the cursor back so it's listed again, until it's failed this many times
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String CURSOR = "cursor";
+
+    public Bot(RedditClient redditClient, DeckRepository postRepo, DeckWriteBatcher deckWriter,
+               ImageClassifier imageClassifier, Path cursorPath) {
         this.redditClient = redditClient;
         this.postRepo = postRepo;
-        this.imageDownloader = imageDownloader;
-        this.matchFinder = matchFinder;
-        this.deckCompressor = deckCompressor;
-
-        latestIds = new ConcurrentLinkedDeque<>(postRepo.getLatestPostsIds().reversed());
+        this.deckWriter = deckWriter;
+        this.imageClassifier = imageClassifier;
+        this.cursorPath = cursorPath;
+
+        var latestIds = postRepo.getLatestPostsIds();
+        latestIds.reversed().forEach(seen::add);
+        cursor = readCursor();
+        if (cursor == null && !latestIds.isEmpty()) {
+            // Without a saved cursor resume from the newest stored post, only posts with images are stored so
+            // polling may resume a little before where it left off
+            cursor = latestIds.getFirst();
+        }
     }
 
     public void start() {
-        executorService.scheduleAtFixedRate(this::run, 0, LOOP_PERIOD_MINUTES, TimeUnit.MINUTES);
+        executorService.schedule(this::poll, 0, TimeUnit.SECONDS);
     }
 
     public void stop() {
         executorService.shutdown();
     }
 
-    private void run() {
+    /**
+     * Polls again sooner while posts are arriving quickly and backs off while the subreddit is quiet.
+     */
+    private void poll() {
+        var newPosts = run();
+        if (newPosts >= BUSY_POLL_POSTS) {
+            pollDelaySeconds = MIN_POLL_DELAY_SECONDS;
+        } else if (newPosts == 0) {
+            pollDelaySeconds = Math.min(pollDelaySeconds * 2, MAX_POLL_DELAY_SECONDS);
+        }
+        if (!executorService.isShutdown()) {
+            executorService.schedule(this::poll, pollDelaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Polls once.
+     *
+     * @return the number of new posts handled
+     */
+    int run() {
         try {
-            var latest = redditClient.getLatest("ptcgp");
+            var listing = fetchNewPosts();
+            var fetched = listing.posts();
 
-            var unprocessed = latest.stream()
-                    .filter(post -> !latestIds.contains(post.id()))
-                    .collect(Collectors.toSet());
-            log.info("Fetched {} newest posts, {} are new", latest.size(), unprocessed.size());
+            var unprocessed = fetched.stream()
+                    .filter(post -> !seen.contains(post.id()))
+                    .collect(Collectors.toMap(RedditPost::id, post -> post, (a, b) -> a))
+                    .values()
+                    .stream()
+                    .sorted(Comparator.comparing(RedditPost::created))
+                    .toList();
+            log.info("Fetched {} posts after {}, {} with images, {} are new", listing.listed(), cursor, fetched.size(),
+                    unprocessed.size());
 
-            unprocessed.forEach(this::processPost);
+            // Classify every post at once, then write them oldest first so each post is stored before its decks
+            var classified = unprocessed.stream()
+                    .map(imageClassifier::classifyAsync)
+                    .toList();
 
-            unprocessed.forEach(post -> {
-                latestIds.pollFirst();
-                latestIds.addLast(post.id());
-            });
+            // Newest post handled before the first one that's to be retried, if any
+            var handledUpTo = cursor;
+            var retrying = false;
+            for (int i = 0; i < unprocessed.size(); i++) {
+                var post = unprocessed.get(i);
+                try {
+                    storePost(classified.get(i).join());
+                    failedAttempts.remove(post.id());
+                } catch (Exception e) {
+                    var attempts = failedAttempts.merge(post.id(), 1, Integer::sum);
+                    if (attempts < MAX_ATTEMPTS) {
+                        log.warn("Error processing post: {}, attempt {} of {}. Retrying next poll", post.id(),
+                                attempts, MAX_ATTEMPTS, e);
+                        retrying = true;
+                        continue;
+                    }
+                    log.error("Error processing post: {}, giving up after {} attempts", post.id(), attempts, e);
+                    failedAttempts.remove(post.id());
+                }
+                seen.add(post.id());
+                if (!retrying) {
+                    handledUpTo = post.id();
+                }
+            }
+
+            // Posts without images aren't returned but still move the cursor on, unless a post is being retried
+            if (retrying) {
+                updateCursor(handledUpTo);
+            } else if (listing.newestId() != null) {
+                updateCursor(listing.newestId());
+            }
+            return unprocessed.size();
         } catch (Exception e) {
             log.error("Error Running Reddit Bot", e);
+            return 0;
         }
     }
 
-    private void processPost(RedditPost post) {
-        try {
-            var images = getImageUrl(post);
+    /**
+     * Pages forward from the cursor until caught up, newest first within each page.
+     */
+    private RedditListing fetchNewPosts() {
+        if (cursor == null) {
+            return redditClient.getNewer(SUBREDDIT, null, PAGE_SIZE);
+        }
 
-            var deckIds = images.stream()
-                    .flatMap(url -> processImage(url).stream())
-                    .toList();
+        var posts = new ArrayList<RedditPost>();
+        var listed = 0;
+        String newestId = null;
+        var before = cursor;
+        for (int page = 0; page < MAX_CATCH_UP_PAGES; page++) {
+            var newer = redditClient.getNewer(SUBREDDIT, before, PAGE_SIZE);
+            posts.addAll(newer.posts());
+            listed += newer.listed();
+            if (newer.newestId() != null) {
+                newestId = newer.newestId();
+            }
+            if (newer.listed() < PAGE_SIZE) {
+                break;
+            }
+            before = newer.newestId();
+        }
 
-            postRepo.insertPost(post, images);
-            postRepo.insertDecks(deckIds, post.id());
-        } catch (Exception e) {
-            log.error("Error processing post: {}. Continuing...", post.id(), e);
+        if (listed == 0) {
+            // Reddit returns nothing after a post that's been removed, so check the cursor hasn't gone stale
+            var newest = redditClient.getNewer(SUBREDDIT, null, 1).newestId();
+            if (newest != null && !newest.equals(cursor) && !seen.contains(newest)) {
+                log.info("Cursor post {} is no longer listed, reading the newest page instead", cursor);
+                return redditClient.getNewer(SUBREDDIT, null, PAGE_SIZE);
+            }
         }
+        return new RedditListing(posts, listed, newestId, null);
     }
 
-    private Optional<String> processImage(String url) {
-        try (var imageStream = imageDownloader.downloadFile(url)) {
-            var matches = matchFinder.findMatches(imageStream);
-            if (matches.size() == 20) {
-                log.info("Found deck");
-                var cards = matches.stream().map(Prediction::cardName).toList();
-                return Optional.of(deckCompressor.compress(cards));
-            }
-        } catch (Exception e) {
-            log.error("Error processing image: {}. Continuing...", url, e);
+    private String readCursor() {
+        if (!Files.exists(cursorPath)) {
+            return null;
+        }
+        var saved = new Properties();
+        try (var in = Files.newBufferedReader(cursorPath)) {
+            saved.load(in);
+        } catch (IOException e) {
+            log.warn("Couldn't read the saved cursor from {}", cursorPath, e);
         }
-        return Optional.empty();
+        return saved.getProperty(CURSOR);
+    }
+
+    /**
+     * Written to a temp file and moved into place, so a crash leaves either the old or the new cursor.
+     */
+    @SneakyThrows
+    private void updateCursor(String newCursor) {
+        if (newCursor == null || newCursor.equals(cursor)) {
+            return;
+        }
+        cursor = newCursor;
+
+        var saved = new Properties();
+        saved.setProperty(CURSOR, cursor);
+        var path = cursorPath.toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = Files.newBufferedWriter(tmp)) {
+            saved.store(out, "Reddit bot position");
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void storePost(ClassifiedPost classified) {
+        postRepo.insertPost(classified.post(), classified.images());
+        deckWriter.submit(classified.deckIds(), classified.post().id());
     }
 
     public static void main(String[] args) throws IOException {
@@ -113,42 +239,17 @@ public class Bot {
         om.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
         om.registerModule(new JavaTimeModule());
 
-        var redditClient = new RedditClient(om);
-        var postRepo = new DeckRepository(
-                "jdbc:postgresql://10.20.30.104:5432/pocketdeck", "pocketdeck", "EGkF7cGSPqlkBto8"
-        );
-
-        var imageDownloader = new ImageDownloader();
-        var hashMatcher = new ColourPHashMatcher(appConfig.pHashBinary());
-        var cardRecogniser = new PokemonCardRecognizer(50, true);
-        cardRecogniser.loadDatabase(appConfig.orbDatabaseBin());
-        var rarityMap = new ObjectMapper().readValue(Files.newInputStream(appConfig.rarityMapPath()), new TypeReference<Map<String, String>>() {
-        });
-
-        var matchFinder = new MatchFinder(hashMatcher, cardRecogniser, rarityMap);
-        var deckCompressor = new DeckCompressor(appConfig.cardListPath());
-
-        var bot = new Bot(redditClient, postRepo, imageDownloader, matchFinder, deckCompressor);
-
-        bot.run();
-    }
+        var redditClient = new RedditClient(om, appConfig.redditBaseUrl());
+        var postRepo = DeckRepository.fromConfig(appConfig);
 
-    private static List<List<String>> getImageUrls(List<RedditPost> posts) {
-        return posts.stream()
-                .map(Bot::getImageUrl)
-                .toList();
-    }
+        try (postRepo;
+             var deckWriter = new DeckWriteBatcher(postRepo, appConfig.deckBatchSize(),
+                appConfig.deckBatchWindowMs(), appConfig.deckQueueCapacity());
+             var imageClassifier = ImageClassifier.fromConfig(appConfig)) {
+            var bot = new Bot(redditClient, postRepo, deckWriter, imageClassifier, appConfig.botCursorPath());
 
-    private static List<String> getImageUrl(RedditPost post) {
-        if (post.mediaMetadata() != null) {
-            return post.mediaMetadata()
-                    .values()
-                    .stream()
-                    .map(metadata -> metadata.sourceData().u().replaceAll("&amp;", "&"))
-                    .toList();
-        } else if (post.url() != null && post.url().startsWith("https://i.redd.it/")) {
-            return Collections.singletonList(post.url());
+            bot.run();
+            bot.stop();
         }
-        return emptyList();
     }
 }
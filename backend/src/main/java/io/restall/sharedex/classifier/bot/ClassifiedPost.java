@@ -0,0 +1,9 @@
+package io.restall.sharedex.classifier.bot;
+
+import java.util.List;
+
+/**
+ * A post with the image urls it links to and the ids of the decks found in those images, in gallery order.
+ */
+public record ClassifiedPost(RedditPost post, List<String> images, List<String> deckIds) {
+}
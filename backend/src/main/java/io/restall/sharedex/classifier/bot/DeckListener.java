@@ -0,0 +1,13 @@
+package io.restall.sharedex.classifier.bot;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Notified after decks are newly stored, used to keep in-memory indexes up to date without polling the DB.
+ */
+@FunctionalInterface
+public interface DeckListener {
+
+    void decksInserted(List<String> deckIds, Instant created);
+}
@@ -2,5 +2,5 @@ package io.restall.sharedex.classifier.bot;
 
 import java.util.List;
 
-public record RedditApiData(List<RedditApiChildren> children) {
+public record DeckPage(List<StoredDeck> decks, String next) {
 }
@@ -1,140 +1,78 @@
 package io.restall.sharedex.classifier.bot;
 
-import lombok.SneakyThrows;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.time.Instant;
-import java.util.ArrayList;
+import io.restall.sharedex.classifier.AppConfig;
+import io.restall.sharedex.classifier.db.DbClient;
+
 import java.util.Collections;
 import java.util.List;
 
-public class DeckRepository {
-
-    private final String url;
-    private final String user;
-    private final String password;
-
-    public DeckRepository(String url, String user, String password) {
-        this.url = url;
-        this.user = user;
-        this.password = password;
+/**
+ * Storage for posts, their images and the decks found in them.
+ */
+public interface DeckRepository extends AutoCloseable {
+
+    /**
+     * Opens the embedded store if a directory is configured for it, otherwise connects to Postgres.
+     */
+    static DeckRepository fromConfig(AppConfig appConfig) {
+        return appConfig.deckStoreDir() != null
+                ? new EmbeddedDeckRepository(appConfig.deckStoreDir())
+                : new PostgresDeckRepository(new DbClient(appConfig));
     }
 
-    private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url, user, password);
-    }
+    /**
+     * Registers a listener that's told about every deck that's newly stored, duplicates are not reported.
+     */
+    void addListener(DeckListener listener);
 
-    public void insertDeck(String deckId) {
+    default void insertDeck(String deckId) {
         insertDecks(Collections.singletonList(deckId), null);
     }
 
-    @SneakyThrows
-    public void insertDecks(List<String> deckIds, String postId) {
-        String insertDeckSql = """
-                INSERT INTO decks (id, post_id, created)
-                VALUES (?, ?, ?)
-                ON CONFLICT (id) DO NOTHING
-                """;
-
-        try (var conn = getConnection();
-             var deckStmt = conn.prepareStatement(insertDeckSql)) {
-
-            for (var deckId : deckIds) {
-                deckStmt.setString(1, deckId);
-                deckStmt.setString(2, postId);
-                deckStmt.setTimestamp(3, Timestamp.from(Instant.now()));
-                deckStmt.addBatch();
-            }
-            deckStmt.executeBatch();
-        }
-    }
-
-    @SneakyThrows
-    public void insertPost(RedditPost post, List<String> imageUrls) {
-        String insertPostSql = """
-                INSERT INTO posts (id, title, selftext, created)
-                VALUES (?, ?, ?, ?)
-                ON CONFLICT (id) DO NOTHING
-                """;
-
-        String insertImageSql = """
-                INSERT INTO images (post_id, url)
-                VALUES (?, ?)
-                """;
-
-        try (var conn = getConnection()) {
-            conn.setAutoCommit(false);
-
-            try (var postStmt = conn.prepareStatement(insertPostSql);
-                 var imgStmt = conn.prepareStatement(insertImageSql)) {
-
-                postStmt.setString(1, post.id());
-                postStmt.setString(2, post.title());
-                postStmt.setString(3, post.selftext());
-                postStmt.setTimestamp(4, Timestamp.from(post.created()));
-
-                postStmt.executeUpdate();
-
-                for (var img : imageUrls) {
-                    imgStmt.setString(1, post.id());
-                    imgStmt.setString(2, img);
-                    imgStmt.addBatch();
-                }
-                imgStmt.executeBatch();
-            } catch (Exception ex) {
-                conn.rollback();
-                throw ex;
-            } finally {
-                conn.setAutoCommit(true);
-            }
-        }
+    default void insertDecks(List<String> deckIds, String postId) {
+        insertDecks(deckIds.stream().map(deckId -> new PendingDeck(deckId, postId)).toList());
     }
 
-    @SneakyThrows
-    public List<String> getLatestPostsIds() {
-        String sql = """
-                SELECT id
-                FROM posts
-                ORDER BY created DESC
-                LIMIT 25
-                """;
-
-        try (var conn = getConnection();
-             var stmt = conn.prepareStatement(sql);
-             var rs = stmt.executeQuery()) {
-
-            var posts = new ArrayList<String>();
-
-            while (rs.next()) {
-                posts.add(rs.getString("id"));
-            }
-            return posts;
-        }
+    /**
+     * Stores all the decks, skipping any that are already stored.
+     */
+    void insertDecks(List<PendingDeck> decks);
+
+    /**
+     * Stores the post and its images, the post is skipped if it's already stored.
+     */
+    void insertPost(RedditPost post, List<String> imageUrls);
+
+    /**
+     * Stores many posts and their images at once, for bulk loads. Decks are stored separately.
+     */
+    default void insertPosts(List<ClassifiedPost> posts) {
+        posts.forEach(post -> insertPost(post.post(), post.images()));
     }
 
-    @SneakyThrows
-    public List<String> getLatestDecks() {
-        String sql = """
-                SELECT id
-                FROM decks
-                ORDER BY created DESC
-                LIMIT 10
-                """;
-
-        try (var conn = getConnection();
-             var stmt = conn.prepareStatement(sql);
-             var rs = stmt.executeQuery()) {
-
-            var posts = new ArrayList<String>();
-
-            while (rs.next()) {
-                posts.add(rs.getString("id"));
-            }
-            return posts;
-        }
+    /**
+     * @return ids of the 25 newest posts, newest first
+     */
+    List<String> getLatestPostsIds();
+
+    /**
+     * @return ids of the 10 newest decks, newest first
+     */
+    List<String> getLatestDecks();
+
+    /**
+     * Returns a page of decks, newest first, starting after the cursor or from the newest deck if it's null.
+     * Decks are ordered by (created, id) so pages stay stable while new decks arrive.
+     */
+    DeckPage getDeckFeed(FeedCursor cursor, int limit);
+
+    /**
+     * @return every stored deck, oldest first
+     */
+    List<StoredDeck> getAllDecks();
+
+    @Override
+    default void close() {
     }
 
 }
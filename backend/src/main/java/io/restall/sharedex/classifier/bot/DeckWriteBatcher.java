@@ -0,0 +1,186 @@
+package io.restall.sharedex.classifier.bot;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for deck inserts.
+ * <p>
+ * Decks are gathered for up to {@code windowMillis} after the first one arrives, or until {@code maxBatch} are
+ * waiting, then stored with a single insert. If the queue is full the caller writes synchronously instead, so
+ * a slow database pushes back rather than dropping decks. Transient database errors are retried with backoff, and a
+ * batch the database rejects is retried a deck at a time so only the bad rows are lost.
+ */
+@Slf4j
+public class DeckWriteBatcher implements AutoCloseable {
+
+    private final DeckRepository deckRepo;
+    private final BlockingQueue<PendingDeck> queue;
+    private final int maxBatch;
+    private final long windowMillis;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final long WINDOW_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public DeckWriteBatcher(DeckRepository deckRepo, int maxBatch, long windowMillis, int capacity) {
+        this.deckRepo = deckRepo;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.windowMillis = windowMillis;
+        this.flusher = new Thread(this::run, "deck-writer");
+        flusher.start();
+    }
+
+    public void submit(String deckId, String postId) {
+        submit(List.of(deckId), postId);
+    }
+
+    public void submit(List<String> deckIds, String postId) {
+        for (var deckId : deckIds) {
+            var pending = new PendingDeck(deckId, postId);
+            if (!running || !queue.offer(pending)) {
+                log.warn("Deck write queue full, writing {} synchronously", deckId);
+                deckRepo.insertDecks(List.of(pending));
+            }
+        }
+    }
+
+    /**
+     * Stops accepting queued writes and flushes everything still waiting.
+     */
+    @Override
+    public void close() {
+        // Not interrupted, that could abort a connection checkout mid flush, it sees this within its 1s poll
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Catch anything submitted while the flusher was stopping
+        var leftover = new ArrayList<PendingDeck>();
+        queue.drainTo(leftover);
+        flush(leftover);
+    }
+
+    private void run() {
+        var batch = new ArrayList<PendingDeck>(maxBatch);
+        while (running) {
+            try {
+                var first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Waits in short slices so close() doesn't have to wait out the whole window
+                var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < maxBatch && running) {
+                    var remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    var next = queue.poll(Math.min(remaining, WINDOW_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Interrupted, fall through to the final flush
+                break;
+            }
+            flush(batch);
+        }
+
+        queue.drainTo(batch);
+        while (!batch.isEmpty()) {
+            var chunk = new ArrayList<>(batch.subList(0, Math.min(maxBatch, batch.size())));
+            batch.subList(0, chunk.size()).clear();
+            flush(chunk);
+        }
+    }
+
+    /**
+     * Stores the batch, retrying transient database errors. If the batch is rejected the decks are stored one at
+     * a time, so a single bad row only drops itself.
+     */
+    private void flush(List<PendingDeck> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            insertWithRetry(batch);
+        } catch (Exception e) {
+            if (batch.size() == 1 || isTransient(e)) {
+                log.error("Error writing {} decks, they have been dropped", batch.size(), e);
+                return;
+            }
+            log.warn("Error writing {} decks, writing them one at a time", batch.size(), e);
+            for (var deck : batch) {
+                try {
+                    insertWithRetry(List.of(deck));
+                } catch (Exception rowError) {
+                    log.error("Error writing deck {} for post {}, it has been dropped", deck.deckId(), deck.postId(),
+                            rowError);
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void insertWithRetry(List<PendingDeck> decks) throws Exception {
+        var backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                deckRepo.insertDecks(decks);
+                return;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS || !isTransient(e)) {
+                    throw e;
+                }
+                log.warn("Transient error writing {} decks, retrying in {}ms", decks.size(), backoffMillis, e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Connection failures, pool timeouts, serialization failures and deadlocks, and the server running out of
+     * resources or shutting down are worth retrying. Anything else, like a constraint violation, fails again.
+     */
+    static boolean isTransient(Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (cause instanceof SQLException sql && sql.getSQLState() != null) {
+                var state = sql.getSQLState();
+                if (state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+                        || state.startsWith("57P")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
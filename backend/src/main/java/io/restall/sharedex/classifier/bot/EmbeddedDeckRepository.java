@@ -0,0 +1,351 @@
+package io.restall.sharedex.classifier.bot;
+
+import io.restall.sharedex.classifier.store.OffsetIndex;
+import io.restall.sharedex.classifier.store.SegmentLog;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deck storage in local files, for running without Postgres.
+ * <p>
+ * Every write is appended to a {@link SegmentLog} and synced before returning. Posts and decks are keyed by id in a
+ * memory-mapped {@link OffsetIndex} so duplicates are skipped without holding every id on the heap. Deck ids and
+ * creation times are kept in memory in (created, id) order to answer the latest and feed queries, the same set the
+ * deck indexes already load at startup. Small sealed segments are merged in the background.
+ */
+@Slf4j
+public class EmbeddedDeckRepository implements DeckRepository {
+
+    private static final byte POST = 1;
+    private static final byte IMAGES = 2;
+    private static final byte DECK = 3;
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+    private static final long COMPACT_PERIOD_MINUTES = 10;
+    private static final int LATEST_POSTS = 25;
+    private static final int LATEST_DECKS = 10;
+
+    private static final Comparator<StoredDeck> DECK_ORDER =
+            Comparator.comparing(StoredDeck::created).thenComparing(StoredDeck::id);
+
+    private record PostKey(String id, Instant created) {
+    }
+
+    private final SegmentLog segmentLog;
+    private final OffsetIndex index;
+    private final ConcurrentSkipListSet<StoredDeck> decks = new ConcurrentSkipListSet<>(DECK_ORDER);
+    // Newest posts, guarded by this
+    private final TreeSet<PostKey> latestPosts =
+            new TreeSet<>(Comparator.comparing(PostKey::created).thenComparing(PostKey::id));
+    private final List<DeckListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "deck-store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @SneakyThrows
+    public EmbeddedDeckRepository(Path dir) {
+        // Locks the directory, so the index is only ever mapped by one process
+        segmentLog = new SegmentLog(dir, SEGMENT_BYTES);
+        try {
+            index = new OffsetIndex(dir.resolve("index.bin"), INITIAL_INDEX_CAPACITY);
+        } catch (IOException | RuntimeException e) {
+            segmentLog.close();
+            throw e;
+        }
+
+        var rebuild = !index.wasClean();
+        if (rebuild) {
+            log.warn("Deck store index is missing or wasn't closed cleanly, rebuilding it");
+        }
+        var start = System.nanoTime();
+        segmentLog.scan((location, payload) -> load(location, payload, rebuild));
+        log.info("Loaded {} decks from {} in {}ms", decks.size(), dir,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        compactor.scheduleWithFixedDelay(this::compact, COMPACT_PERIOD_MINUTES, COMPACT_PERIOD_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void addListener(DeckListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    @SneakyThrows
+    public void insertDecks(List<PendingDeck> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Match the precision Postgres stores so feed cursors round trip
+        var created = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        var inserted = new ArrayList<String>(pending.size());
+        synchronized (this) {
+            for (var deck : pending) {
+                var key = key(DECK, deck.deckId());
+                if (find(key, DECK, deck.deckId()) != -1) {
+                    continue;
+                }
+                var location = segmentLog.append(encode(DECK, deck.deckId(), out -> {
+                    writeString(out, deck.postId());
+                    out.writeLong(toMicros(created));
+                }));
+                index.put(key, location);
+                inserted.add(deck.deckId());
+            }
+            segmentLog.sync();
+        }
+
+        for (var deckId : inserted) {
+            decks.add(new StoredDeck(deckId, created));
+        }
+        if (!inserted.isEmpty()) {
+            listeners.forEach(listener -> listener.decksInserted(inserted, created));
+        }
+    }
+
+    @Override
+    public void insertPost(RedditPost post, List<String> imageUrls) {
+        insertPosts(List.of(new ClassifiedPost(post, imageUrls, List.of())));
+    }
+
+    /**
+     * Appends every post then syncs once.
+     */
+    @Override
+    @SneakyThrows
+    public synchronized void insertPosts(List<ClassifiedPost> posts) {
+        for (var classified : posts) {
+            appendPost(classified.post(), classified.images());
+        }
+        segmentLog.sync();
+    }
+
+    /**
+     * Stores the post and its images as one record so they're written together, like the Postgres transaction.
+     * A post that's already stored is skipped with its images, so replayed posts don't duplicate them.
+     */
+    private void appendPost(RedditPost post, List<String> imageUrls) throws IOException {
+        var key = key(POST, post.id());
+        if (find(key, POST, post.id()) != -1) {
+            return;
+        }
+
+        var location = segmentLog.append(encode(POST, post.id(), out -> {
+            writeString(out, post.title());
+            writeString(out, post.selftext());
+            out.writeLong(toMicros(post.created()));
+            writeStrings(out, imageUrls);
+        }));
+        index.put(key, location);
+        addLatestPost(new PostKey(post.id(), post.created()));
+    }
+
+    @Override
+    public synchronized List<String> getLatestPostsIds() {
+        return latestPosts.descendingSet().stream().map(PostKey::id).toList();
+    }
+
+    @Override
+    public List<String> getLatestDecks() {
+        return decks.descendingSet().stream().limit(LATEST_DECKS).map(StoredDeck::id).toList();
+    }
+
+    @Override
+    public DeckPage getDeckFeed(FeedCursor cursor, int limit) {
+        var newestFirst = cursor == null
+                ? decks.descendingSet()
+                : decks.headSet(new StoredDeck(cursor.deckId(), cursor.created()), false).descendingSet();
+
+        // Take one extra deck to know whether there's another page
+        var page = newestFirst.stream().limit(limit + 1L).toList();
+        if (page.size() <= limit) {
+            return new DeckPage(page, null);
+        }
+        page = page.subList(0, limit);
+        return new DeckPage(List.copyOf(page), FeedCursor.after(page.getLast()).encode());
+    }
+
+    @Override
+    public List<StoredDeck> getAllDecks() {
+        return List.copyOf(decks);
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (this) {
+            segmentLog.close();
+            index.close();
+        }
+    }
+
+    private void load(long location, byte[] payload, boolean rebuild) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(payload));
+        var type = in.readByte();
+        var id = readString(in);
+        if (type == IMAGES) {
+            return;
+        }
+
+        var key = key(type, id);
+        if (rebuild && find(key, type, id) == -1) {
+            index.put(key, location);
+        }
+        if (index.find(key, stored -> stored == location) == -1) {
+            // A copy of a record that's already stored elsewhere
+            return;
+        }
+
+        if (type == DECK) {
+            readString(in);
+            decks.add(new StoredDeck(id, fromMicros(in.readLong())));
+        } else if (type == POST) {
+            readString(in);
+            readString(in);
+            addLatestPost(new PostKey(id, fromMicros(in.readLong())));
+        }
+    }
+
+    /**
+     * Merges small sealed segments, dropping any record the index no longer points at.
+     */
+    private void compact() {
+        try {
+            synchronized (this) {
+                var run = segmentLog.compactableRun();
+                if (run.isEmpty()) {
+                    return;
+                }
+                var start = System.nanoTime();
+                segmentLog.compact(run, new SegmentLog.CompactionHandler() {
+                    @Override
+                    public boolean keep(long location, byte[] payload) throws IOException {
+                        var record = header(payload);
+                        return record.type() == IMAGES
+                                || index.find(record.key(), stored -> stored == location) != -1;
+                    }
+
+                    @Override
+                    public void moved(long from, long to, byte[] payload) throws IOException {
+                        var record = header(payload);
+                        if (record.type() != IMAGES) {
+                            index.replace(record.key(), from, to);
+                        }
+                    }
+                });
+                log.info("Compacted deck store segments {} in {}ms", run,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        } catch (Exception e) {
+            log.error("Error compacting deck store", e);
+        }
+    }
+
+    private record RecordHeader(byte type, long key) {
+    }
+
+    private static RecordHeader header(byte[] payload) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(payload));
+        var type = in.readByte();
+        return new RecordHeader(type, key(type, readString(in)));
+    }
+
+    /**
+     * Finds the stored record for the id, confirming the id on disk since the index only holds hashes.
+     */
+    private long find(long key, byte type, String id) {
+        return index.find(key, location -> {
+            try {
+                var in = new DataInputStream(new ByteArrayInputStream(segmentLog.read(location)));
+                return in.readByte() == type && id.equals(readString(in));
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading deck store record", e);
+            }
+        });
+    }
+
+    private void addLatestPost(PostKey post) {
+        synchronized (this) {
+            latestPosts.add(post);
+            if (latestPosts.size() > LATEST_POSTS) {
+                latestPosts.pollFirst();
+            }
+        }
+    }
+
+    private static long key(byte type, String id) {
+        return OffsetIndex.hash(type, id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private interface RecordBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Every record starts with its type and id, so the key can be read without knowing the rest of the layout.
+     */
+    private static byte[] encode(byte type, String id, RecordBody body) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeString(out, id);
+        body.write(out);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // Not writeUTF, post bodies can be longer than its 64KB limit
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (var value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        var length = in.readInt();
+        return length < 0 ? null : new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static long toMicros(Instant instant) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+
+    private static Instant fromMicros(long micros) {
+        return Instant.EPOCH.plus(micros, ChronoUnit.MICROS);
+    }
+}
@@ -0,0 +1,34 @@
+package io.restall.sharedex.classifier.bot;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+
+/**
+ * Position in the deck feed, the (created, id) of the last deck on the previous page.
+ * Encoded as an opaque URL-safe string so clients can't depend on its contents.
+ */
+public record FeedCursor(Instant created, String deckId) {
+
+    public static FeedCursor after(StoredDeck deck) {
+        return new FeedCursor(deck.created(), deck.id());
+    }
+
+    public String encode() {
+        // Postgres keeps microseconds, anything finer would never match the stored value
+        var micros = ChronoUnit.MICROS.between(Instant.EPOCH, created);
+        var raw = micros + ":" + deckId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static FeedCursor decode(String cursor) {
+        var raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        var sep = raw.indexOf(':');
+        if (sep == -1) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        var micros = Long.parseLong(raw.substring(0, sep));
+        return new FeedCursor(Instant.EPOCH.plus(micros, ChronoUnit.MICROS), raw.substring(sep + 1));
+    }
+}
@@ -0,0 +1,185 @@
+package io.restall.sharedex.classifier.bot;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.restall.sharedex.classifier.AppConfig;
+import io.restall.sharedex.classifier.ColourPHashMatcher;
+import io.restall.sharedex.classifier.MatchFinder;
+import io.restall.sharedex.classifier.OutlineFinder;
+import io.restall.sharedex.classifier.api.DeckCompressor;
+import io.restall.sharedex.classifier.api.ImageDownloader;
+import io.restall.sharedex.classifier.opencv.PokemonCardRecognizer;
+import io.restall.sharedex.classifier.opencv.Prediction;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * Finds the decks in a post's images, shared by the bot and the backfill.
+ * <p>
+ * Downloads block on the network so each gets a virtual thread, recognition is CPU bound so it runs on a fixed pool.
+ * A semaphore bounds the images in flight, and so the downloaded bytes held in memory.
+ * <p>
+ * Gallery images are downloaded at the smallest preview size that still gives each card a minimum width. The default
+ * of 64px is well above the 2000px² outlines must cover to be found and the 32px cards are hashed at. It's applied
+ * to a row of 10 cards, the most outline detection looks for, so screenshots with fewer columns get larger cards.
+ */
+@Slf4j
+public class ImageClassifier implements AutoCloseable {
+
+    private final ImageDownloader imageDownloader;
+    private final MatchFinder matchFinder;
+    private final DeckCompressor deckCompressor;
+    private final ExecutorService ioExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ExecutorService recognitionExecutor;
+    private final Semaphore imagePermits;
+    // Narrowest gallery preview that's downloaded instead of the source, 0 to always download the source
+    private final int minImageWidth;
+
+    /**
+     * @param minCardWidth narrowest a card may be in a downloaded gallery image, previews are only used if they
+     *                     still fit a full grid of cards this wide. 0 always downloads the full size source
+     */
+    public ImageClassifier(ImageDownloader imageDownloader, MatchFinder matchFinder, DeckCompressor deckCompressor,
+                           int maxImagesInFlight, int recognitionThreads, int minCardWidth) {
+        this.imageDownloader = imageDownloader;
+        this.matchFinder = matchFinder;
+        this.deckCompressor = deckCompressor;
+        this.minImageWidth = minImageWidth(minCardWidth);
+        this.imagePermits = new Semaphore(maxImagesInFlight);
+
+        var threadCount = new AtomicInteger();
+        this.recognitionExecutor = Executors.newFixedThreadPool(recognitionThreads, r -> {
+            var thread = new Thread(r, "image-recognition-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the card matchers for a standalone process, the API shares the ones it already has.
+     */
+    @SneakyThrows
+    public static ImageClassifier fromConfig(AppConfig appConfig) {
+        var hashMatcher = new ColourPHashMatcher(appConfig.pHashBinary());
+        var cardRecogniser = new PokemonCardRecognizer(50, true);
+        cardRecogniser.loadDatabase(appConfig.orbDatabaseBin());
+        var rarityMap = new ObjectMapper().readValue(Files.newInputStream(appConfig.rarityMapPath()), new TypeReference<Map<String, String>>() {
+        });
+
+        var matchFinder = new MatchFinder(hashMatcher, cardRecogniser, rarityMap);
+        var deckCompressor = new DeckCompressor(appConfig.cardListPath());
+        return new ImageClassifier(ImageDownloader.fromConfig(appConfig), matchFinder, deckCompressor,
+                appConfig.botMaxImagesInFlight(), appConfig.botRecognitionThreads(), appConfig.botMinCardWidth());
+    }
+
+    /**
+     * Classifies all the post's images in parallel on virtual threads.
+     */
+    public CompletableFuture<ClassifiedPost> classifyAsync(RedditPost post) {
+        return CompletableFuture.supplyAsync(() -> classify(post), ioExecutor);
+    }
+
+    public ClassifiedPost classify(RedditPost post) {
+        var images = imageUrls(post);
+
+        var results = downloadUrls(post).stream()
+                .map(url -> CompletableFuture.supplyAsync(() -> processImage(url), ioExecutor))
+                .toList();
+        // Joined in gallery order so decks are stored in the order they were posted
+        var deckIds = results.stream()
+                .flatMap(result -> result.join().stream())
+                .toList();
+
+        return new ClassifiedPost(post, images, deckIds);
+    }
+
+    @Override
+    public void close() {
+        ioExecutor.shutdown();
+        recognitionExecutor.shutdown();
+    }
+
+    private Optional<String> processImage(String url) {
+        try {
+            imagePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        try {
+            var bytes = imageDownloader.download(url);
+            if (bytes == null) {
+                return Optional.empty();
+            }
+
+            var matches = CompletableFuture
+                    .supplyAsync(() -> matchFinder.findMatches(new ByteArrayInputStream(bytes)), recognitionExecutor)
+                    .join();
+            if (matches.size() == 20) {
+                log.info("Found deck");
+                var cards = matches.stream().map(Prediction::cardName).toList();
+                return Optional.of(deckCompressor.compressCanonical(cards));
+            }
+        } catch (Exception e) {
+            log.error("Error processing image: {}. Continuing...", url, e);
+        } finally {
+            imagePermits.release();
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the full size url of each of the post's images, as they're stored
+     */
+    public static List<String> imageUrls(RedditPost post) {
+        return urls(post, RedditGalleryMetadata::sourceData);
+    }
+
+    /**
+     * Width an image needs for a row of the most cards outline detection looks for, with the widest gaps between
+     * them, to have every card at least {@code minCardWidth} pixels wide.
+     */
+    static int minImageWidth(int minCardWidth) {
+        var columns = OutlineFinder.GRID_COLUMNS;
+        return minCardWidth * columns + (columns - 1) * minCardWidth / OutlineFinder.MAX_GAP_DIVISOR;
+    }
+
+    /**
+     * Same images as {@link #imageUrls}, but gallery images use the smallest preview whose cards are still big enough
+     * to match, a fraction of the bytes of the full size screenshot.
+     */
+    private List<String> downloadUrls(RedditPost post) {
+        if (minImageWidth <= 0) {
+            return imageUrls(post);
+        }
+        return urls(post, metadata -> metadata.smallestAtLeast(minImageWidth));
+    }
+
+    private static List<String> urls(RedditPost post, Function<RedditGalleryMetadata, RedditGalleryImageData> image) {
+        if (post.mediaMetadata() != null) {
+            return post.mediaMetadata()
+                    .values()
+                    .stream()
+                    .map(metadata -> image.apply(metadata).u().replaceAll("&amp;", "&"))
+                    .toList();
+        } else if (post.url() != null && post.url().startsWith(RedditPost.IMAGE_HOST_PREFIX)) {
+            return Collections.singletonList(post.url());
+        }
+        return emptyList();
+    }
+}
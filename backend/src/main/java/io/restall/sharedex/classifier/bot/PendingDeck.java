@@ -0,0 +1,4 @@
+package io.restall.sharedex.classifier.bot;
+
+public record PendingDeck(String deckId, String postId) {
+}
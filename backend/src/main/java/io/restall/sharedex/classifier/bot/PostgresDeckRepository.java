@@ -0,0 +1,376 @@
+package io.restall.sharedex.classifier.bot;
+
+import io.restall.sharedex.classifier.AppConfig;
+import io.restall.sharedex.classifier.api.DeckCompressor;
+import io.restall.sharedex.classifier.db.DbClient;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Deck storage backed by Postgres through the shared connection pool.
+ * <p>
+ * Running this class rewrites decks stored under order preserving ids to their canonical id, see
+ * {@link #canonicalizeDeckIds(DeckCompressor)}.
+ */
+@Slf4j
+public class PostgresDeckRepository implements DeckRepository {
+
+    private final DbClient dbClient;
+    private final List<DeckListener> listeners = new CopyOnWriteArrayList<>();
+
+    public PostgresDeckRepository(DbClient dbClient) {
+        this.dbClient = dbClient;
+    }
+
+    private Connection getConnection() throws SQLException {
+        return dbClient.getConnection();
+    }
+
+    public DbClient dbClient() {
+        return dbClient;
+    }
+
+    @Override
+    public void addListener(DeckListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Inserts all the decks in a single statement, skipping any that are already stored.
+     * The rows are passed as arrays so the statement text is the same for any batch size and stays prepared.
+     */
+    @Override
+    @SneakyThrows
+    public void insertDecks(List<PendingDeck> decks) {
+        String insertDeckSql = """
+                INSERT INTO decks (id, post_id, created)
+                SELECT id, post_id, ?
+                FROM unnest(?::text[], ?::text[]) AS d(id, post_id)
+                ON CONFLICT (id) DO NOTHING
+                RETURNING id
+                """;
+
+        if (decks.isEmpty()) {
+            return;
+        }
+
+        var created = Instant.now();
+        var inserted = new ArrayList<String>(decks.size());
+        try (var conn = getConnection();
+             var deckStmt = conn.prepareStatement(insertDeckSql)) {
+
+            deckStmt.setTimestamp(1, Timestamp.from(created));
+            deckStmt.setArray(2, conn.createArrayOf("text", decks.stream().map(PendingDeck::deckId).toArray()));
+            deckStmt.setArray(3, conn.createArrayOf("text", decks.stream().map(PendingDeck::postId).toArray()));
+
+            // Only rows that didn't conflict are returned
+            try (var rs = deckStmt.executeQuery()) {
+                while (rs.next()) {
+                    inserted.add(rs.getString("id"));
+                }
+            }
+        }
+
+        if (!inserted.isEmpty()) {
+            listeners.forEach(listener -> listener.decksInserted(inserted, created));
+        }
+    }
+
+    @Override
+    public void insertPost(RedditPost post, List<String> imageUrls) {
+        insertPosts(List.of(new ClassifiedPost(post, imageUrls, List.of())));
+    }
+
+    /**
+     * Stores all the posts and images in one transaction. Posts go in as one array statement like the decks, then
+     * images are batched for the posts that were actually inserted, so replaying posts that are already stored
+     * doesn't duplicate their images.
+     */
+    @Override
+    @SneakyThrows
+    public void insertPosts(List<ClassifiedPost> posts) {
+        String insertPostSql = """
+                INSERT INTO posts (id, title, selftext, created)
+                SELECT id, title, selftext, created
+                FROM unnest(?::text[], ?::text[], ?::text[], ?::timestamptz[]) AS p(id, title, selftext, created)
+                ON CONFLICT (id) DO NOTHING
+                RETURNING id
+                """;
+
+        String insertImageSql = """
+                INSERT INTO images (post_id, url)
+                VALUES (?, ?)
+                """;
+
+        if (posts.isEmpty()) {
+            return;
+        }
+
+        try (var conn = getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (var postStmt = conn.prepareStatement(insertPostSql);
+                 var imgStmt = conn.prepareStatement(insertImageSql)) {
+
+                var stored = posts.stream().map(ClassifiedPost::post).toList();
+                postStmt.setArray(1, conn.createArrayOf("text", stored.stream().map(RedditPost::id).toArray()));
+                postStmt.setArray(2, conn.createArrayOf("text", stored.stream().map(RedditPost::title).toArray()));
+                postStmt.setArray(3, conn.createArrayOf("text", stored.stream().map(RedditPost::selftext).toArray()));
+                postStmt.setArray(4, conn.createArrayOf("timestamptz",
+                        stored.stream().map(post -> Timestamp.from(post.created())).toArray()));
+
+                // Only rows that didn't conflict are returned
+                var inserted = new HashSet<String>();
+                try (var rs = postStmt.executeQuery()) {
+                    while (rs.next()) {
+                        inserted.add(rs.getString("id"));
+                    }
+                }
+
+                for (var classified : posts) {
+                    // Removed as it's used so a post listed twice only gets one set of images
+                    if (!inserted.remove(classified.post().id())) {
+                        continue;
+                    }
+                    for (var img : classified.images()) {
+                        imgStmt.setString(1, classified.post().id());
+                        imgStmt.setString(2, img);
+                        imgStmt.addBatch();
+                    }
+                }
+                imgStmt.executeBatch();
+                conn.commit();
+            } catch (Exception ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public List<String> getLatestPostsIds() {
+        String sql = """
+                SELECT id
+                FROM posts
+                ORDER BY created DESC
+                LIMIT 25
+                """;
+
+        try (var conn = getConnection();
+             var stmt = conn.prepareStatement(sql);
+             var rs = stmt.executeQuery()) {
+
+            var posts = new ArrayList<String>();
+
+            while (rs.next()) {
+                posts.add(rs.getString("id"));
+            }
+            return posts;
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public List<String> getLatestDecks() {
+        String sql = """
+                SELECT id
+                FROM decks
+                ORDER BY created DESC
+                LIMIT 10
+                """;
+
+        try (var conn = getConnection();
+             var stmt = conn.prepareStatement(sql);
+             var rs = stmt.executeQuery()) {
+
+            var posts = new ArrayList<String>();
+
+            while (rs.next()) {
+                posts.add(rs.getString("id"));
+            }
+            return posts;
+        }
+    }
+
+    /**
+     * Returns a page of decks, newest first, starting after the cursor or from the newest deck if it's null.
+     * Uses keyset pagination on (created, id) so every page costs the same however deep it is.
+     */
+    @Override
+    @SneakyThrows
+    public DeckPage getDeckFeed(FeedCursor cursor, int limit) {
+        String firstPageSql = """
+                SELECT id, created
+                FROM decks
+                ORDER BY created DESC, id DESC
+                LIMIT ?
+                """;
+
+        String nextPageSql = """
+                SELECT id, created
+                FROM decks
+                WHERE (created, id) < (?, ?)
+                ORDER BY created DESC, id DESC
+                LIMIT ?
+                """;
+
+        try (var conn = getConnection();
+             var stmt = conn.prepareStatement(cursor == null ? firstPageSql : nextPageSql)) {
+            var param = 1;
+            if (cursor != null) {
+                stmt.setTimestamp(param++, Timestamp.from(cursor.created()));
+                stmt.setString(param++, cursor.deckId());
+            }
+            // Fetch one extra row to know whether there's another page
+            stmt.setInt(param, limit + 1);
+
+            try (var rs = stmt.executeQuery()) {
+                var decks = new ArrayList<StoredDeck>(limit + 1);
+                while (rs.next()) {
+                    decks.add(new StoredDeck(rs.getString("id"), rs.getTimestamp("created").toInstant()));
+                }
+                if (decks.size() <= limit) {
+                    return new DeckPage(decks, null);
+                }
+                var page = decks.subList(0, limit);
+                return new DeckPage(List.copyOf(page), FeedCursor.after(page.getLast()).encode());
+            }
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public List<StoredDeck> getAllDecks() {
+        String sql = """
+                SELECT id, created
+                FROM decks
+                ORDER BY created
+                """;
+
+        try (var conn = getConnection();
+             var stmt = conn.prepareStatement(sql)) {
+            // Stream rows rather than loading the whole table into the driver
+            conn.setAutoCommit(false);
+            stmt.setFetchSize(1000);
+
+            try (var rs = stmt.executeQuery()) {
+                var decks = new ArrayList<StoredDeck>();
+                while (rs.next()) {
+                    decks.add(new StoredDeck(rs.getString("id"), rs.getTimestamp("created").toInstant()));
+                }
+                return decks;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Rewrites decks stored before ids were canonical to their canonical id, in one transaction. Where several
+     * orderings of the same deck are stored only the oldest row is kept, so it keeps its post and creation time.
+     * Ids that don't decode are left as they are.
+     *
+     * @return the number of rows rewritten or removed
+     */
+    @SneakyThrows
+    public int canonicalizeDeckIds(DeckCompressor compressor) {
+        String selectSql = """
+                SELECT id
+                FROM decks
+                ORDER BY created, id
+                """;
+
+        String deleteSql = """
+                DELETE FROM decks
+                WHERE id = ANY(?::text[])
+                """;
+
+        // Duplicates are deleted first, so no canonical id is still taken when the kept rows are renamed
+        String renameSql = """
+                UPDATE decks
+                SET id = r.canonical_id
+                FROM unnest(?::text[], ?::text[]) AS r(id, canonical_id)
+                WHERE decks.id = r.id
+                """;
+
+        try (var conn = getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (var selectStmt = conn.prepareStatement(selectSql);
+                 var deleteStmt = conn.prepareStatement(deleteSql);
+                 var renameStmt = conn.prepareStatement(renameSql)) {
+                // Oldest row for each canonical id
+                var kept = new LinkedHashMap<String, String>();
+                var duplicates = new ArrayList<String>();
+                selectStmt.setFetchSize(1000);
+                try (var rs = selectStmt.executeQuery()) {
+                    while (rs.next()) {
+                        var id = rs.getString("id");
+                        String canonicalId;
+                        try {
+                            canonicalId = compressor.canonicalize(id);
+                        } catch (IllegalArgumentException e) {
+                            log.warn("Leaving invalid deck id: {}", id);
+                            continue;
+                        }
+                        if (kept.putIfAbsent(canonicalId, id) != null) {
+                            duplicates.add(id);
+                        }
+                    }
+                }
+
+                var renamed = kept.entrySet().stream()
+                        .filter(entry -> !entry.getKey().equals(entry.getValue()))
+                        .toList();
+
+                deleteStmt.setArray(1, conn.createArrayOf("text", duplicates.toArray()));
+                deleteStmt.executeUpdate();
+                renameStmt.setArray(1, conn.createArrayOf("text", renamed.stream().map(Map.Entry::getValue).toArray()));
+                renameStmt.setArray(2, conn.createArrayOf("text", renamed.stream().map(Map.Entry::getKey).toArray()));
+                renameStmt.executeUpdate();
+                conn.commit();
+
+                log.info("Removed {} duplicate decks and rewrote {} to their canonical id", duplicates.size(),
+                        renamed.size());
+                return duplicates.size() + renamed.size();
+            } catch (Exception ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var appConfig = AppConfig.fromEnv();
+        if (appConfig.deckStoreDir() != null) {
+            // The embedded store was added after ids became canonical, so it never held any other form
+            log.info("Decks are in the embedded store, which only holds canonical ids");
+            return;
+        }
+
+        try (var deckRepo = new PostgresDeckRepository(new DbClient(appConfig))) {
+            deckRepo.canonicalizeDeckIds(new DeckCompressor(appConfig.cardListPath()));
+        }
+    }
+
+    @Override
+    public void close() {
+        dbClient.close();
+    }
+}
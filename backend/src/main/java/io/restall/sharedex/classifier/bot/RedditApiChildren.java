@@ -1,4 +0,0 @@
-package io.restall.sharedex.classifier.bot;
-
-public record RedditApiChildren(String kind, RedditPost data) {
-}
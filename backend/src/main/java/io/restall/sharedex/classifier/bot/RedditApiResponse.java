@@ -1,4 +0,0 @@
-package io.restall.sharedex.classifier.bot;
-
-public record RedditApiResponse(String kind, RedditApiData data) {
-}
@@ -1,43 +1,290 @@
 package io.restall.sharedex.classifier.bot;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.List;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Reads subreddit listings with a streaming parser that only pulls out the fields the bot uses, skipping everything
+ * else in Reddit's large post objects without building it. Posts without images are dropped while parsing.
+ */
 @AllArgsConstructor
 public class RedditClient {
 
     private final ObjectMapper om;
+    // Overridable so the bot and backfill can be pointed at a local fake listing server
+    private final String baseUrl;
 
-    private static final String URL_PATTERN = "https://www.reddit.com/r/%s/new.json";
+    private static final String DEFAULT_BASE_URL = "https://www.reddit.com";
     private static final String USER_AGENT = "";
+    private static final String URL_PATTERN = "%s/r/%s/new.json?limit=%d";
+    private static final String FULLNAME_PREFIX = "t3_";
+    private static final int MAX_VALIDATORS = 32;
     private final HttpClient client = HttpClient.newHttpClient();
 
-    @SneakyThrows
-    public List<RedditPost> getLatest(String subreddit) {
-        var url = URL_PATTERN.formatted(subreddit);
+    private record Validators(String etag, String lastModified) {
+    }
+
+    // ETag and Last-Modified of recent listing urls, so unchanged listings come back as an empty 304
+    private final Map<String, Validators> validators = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+            return size() > MAX_VALIDATORS;
+        }
+    };
+
+    public RedditClient(ObjectMapper om) {
+        this(om, DEFAULT_BASE_URL);
+    }
+
+    /**
+     * Fetches up to {@code limit} posts submitted after the given post, or the newest posts if it's null.
+     * Returns an empty listing if nothing has changed since the same request was last made.
+     */
+    public RedditListing getNewer(String subreddit, String beforeId, int limit) {
+        var url = URL_PATTERN.formatted(baseUrl, subreddit, limit);
+        if (beforeId != null) {
+            url += "&before=" + FULLNAME_PREFIX + beforeId;
+        }
+        return fetch(url, true);
+    }
+
+    /**
+     * Fetches up to {@code limit} posts submitted before the given post, or the newest posts if it's null.
+     */
+    public RedditListing getOlder(String subreddit, String afterId, int limit) {
+        var url = URL_PATTERN.formatted(baseUrl, subreddit, limit);
+        if (afterId != null) {
+            url += "&after=" + FULLNAME_PREFIX + afterId;
+        }
+        return fetch(url, false);
+    }
 
-        var req = HttpRequest.newBuilder()
+    @SneakyThrows
+    private RedditListing fetch(String url, boolean conditional) {
+        var builder = HttpRequest.newBuilder()
                 .uri(URI.create(url))
                 .header("User-Agent", "poke deck updater (by u/conorrr)")
-                .GET()
-                .build();
+                .header("Accept-Encoding", "gzip")
+                .GET();
+
+        var cached = conditional ? getValidators(url) : null;
+        if (cached != null && cached.etag() != null) {
+            builder.header("If-None-Match", cached.etag());
+        }
+        if (cached != null && cached.lastModified() != null) {
+            builder.header("If-Modified-Since", cached.lastModified());
+        }
+
+        var response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (var body = response.body()) {
+            if (response.statusCode() == 304) {
+                return RedditListing.EMPTY;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("Unexpected response code: " + response.statusCode() + " for " + url);
+            }
+
+            if (conditional) {
+                var etag = response.headers().firstValue("ETag").orElse(null);
+                var lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+                if (etag != null || lastModified != null) {
+                    putValidators(url, new Validators(etag, lastModified));
+                }
+            }
+
+            var gzipped = response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip");
+            return parseListing(gzipped ? new GZIPInputStream(body) : body);
+        }
+    }
+
+    private Validators getValidators(String url) {
+        synchronized (validators) {
+            return validators.get(url);
+        }
+    }
+
+    private void putValidators(String url, Validators value) {
+        synchronized (validators) {
+            validators.put(url, value);
+        }
+    }
+
+    private RedditListing parseListing(InputStream in) throws IOException {
+        try (var parser = om.getFactory().createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("data")) {
+                    return parseListingData(parser);
+                }
+                parser.skipChildren();
+            }
+            return RedditListing.EMPTY;
+        }
+    }
+
+    private static RedditListing parseListingData(JsonParser parser) throws IOException {
+        var posts = new ArrayList<RedditPost>();
+        var listed = 0;
+        String newestId = null;
+        String after = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            var token = parser.nextToken();
+            switch (field) {
+                case "after" -> after = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                case "children" -> {
+                    expect(parser, token, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        var post = parseChild(parser);
+                        if (post == null) {
+                            continue;
+                        }
+                        listed++;
+                        if (newestId == null) {
+                            newestId = post.id();
+                        }
+                        if (post.hasImages()) {
+                            posts.add(post);
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (after != null && after.startsWith(FULLNAME_PREFIX)) {
+            after = after.substring(FULLNAME_PREFIX.length());
+        }
+        return new RedditListing(posts, listed, newestId, after);
+    }
+
+    /**
+     * Parses a {"kind": ..., "data": {...}} listing entry.
+     */
+    private static RedditPost parseChild(JsonParser parser) throws IOException {
+        RedditPost post = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            var token = parser.nextToken();
+            if (field.equals("data") && token == JsonToken.START_OBJECT) {
+                post = parsePost(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return post;
+    }
 
-        var respIs = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
-        var apiResponse = om.readValue(respIs.body(), RedditApiResponse.class);
+    private static RedditPost parsePost(JsonParser parser) throws IOException {
+        String id = null;
+        String title = null;
+        String selftext = null;
+        String url = null;
+        Instant created = null;
+        Map<String, RedditGalleryMetadata> mediaMetadata = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            var token = parser.nextToken();
+            switch (field) {
+                case "id" -> id = parser.getText();
+                case "title" -> title = parser.getText();
+                case "selftext" -> selftext = parser.getText();
+                case "url" -> url = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                case "created_utc" -> created = toInstant(parser.getDecimalValue());
+                case "media_metadata" -> mediaMetadata = token == JsonToken.START_OBJECT
+                        ? parseMediaMetadata(parser)
+                        : null;
+                default -> parser.skipChildren();
+            }
+        }
+        return new RedditPost(id, title, selftext, mediaMetadata, url, created);
+    }
+
+    /**
+     * Keeps the type, full size source and downscaled previews of each gallery image, images without a source are
+     * dropped.
+     */
+    private static Map<String, RedditGalleryMetadata> parseMediaMetadata(JsonParser parser) throws IOException {
+        var media = new LinkedHashMap<String, RedditGalleryMetadata>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var mediaId = parser.currentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String type = null;
+            RedditGalleryImageData source = null;
+            var previews = new ArrayList<RedditGalleryImageData>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.currentName();
+                var token = parser.nextToken();
+                if (field.equals("e")) {
+                    type = parser.getText();
+                } else if (field.equals("s") && token == JsonToken.START_OBJECT) {
+                    source = parseImageData(parser);
+                } else if (field.equals("p") && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        previews.add(parseImageData(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (source != null && source.u() != null) {
+                media.put(mediaId, new RedditGalleryMetadata(type, source, previews));
+            }
+        }
+        return media;
+    }
+
+    private static RedditGalleryImageData parseImageData(JsonParser parser) throws IOException {
+        var x = 0;
+        var y = 0;
+        String u = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "x" -> x = parser.getIntValue();
+                case "y" -> y = parser.getIntValue();
+                case "u" -> u = parser.getText();
+                default -> parser.skipChildren();
+            }
+        }
+        return new RedditGalleryImageData(y, x, u);
+    }
+
+    private static Instant toInstant(BigDecimal epochSeconds) {
+        var seconds = epochSeconds.longValue();
+        var nanos = epochSeconds.subtract(BigDecimal.valueOf(seconds)).movePointRight(9).longValue();
+        return Instant.ofEpochSecond(seconds, nanos);
+    }
 
-        return apiResponse.data()
-                .children()
-                .stream()
-                .map(RedditApiChildren::data)
-                .toList();
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.currentLocation());
+        }
     }
 
 }
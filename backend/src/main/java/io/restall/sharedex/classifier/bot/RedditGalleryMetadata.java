@@ -2,8 +2,27 @@ package io.restall.sharedex.classifier.bot;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Comparator;
+import java.util.List;
+
 public record RedditGalleryMetadata(
         @JsonProperty("e") String type,
-        @JsonProperty("s") RedditGalleryImageData sourceData
+        @JsonProperty("s") RedditGalleryImageData sourceData,
+        @JsonProperty("p") List<RedditGalleryImageData> previews
 ) {
+
+    /**
+     * The smallest preview that's at least {@code minWidth} pixels wide and smaller than the source, or the source if
+     * no preview is.
+     */
+    public RedditGalleryImageData smallestAtLeast(int minWidth) {
+        if (previews == null) {
+            return sourceData;
+        }
+        return previews.stream()
+                .filter(preview -> preview.u() != null && preview.x() >= minWidth)
+                .filter(preview -> preview.x() < sourceData.x())
+                .min(Comparator.comparingInt(RedditGalleryImageData::x))
+                .orElse(sourceData);
+    }
 }
@@ -0,0 +1,13 @@
+package io.restall.sharedex.classifier.bot;
+
+import java.util.List;
+
+/**
+ * One page of a subreddit listing, newest first.
+ * Only posts with images are kept, {@code listed} and {@code newestId} describe the full page so callers can still
+ * page through it. {@code after} is the id to page further back from, null on the last page Reddit will return.
+ */
+public record RedditListing(List<RedditPost> posts, int listed, String newestId, String after) {
+
+    public static final RedditListing EMPTY = new RedditListing(List.of(), 0, null, null);
+}
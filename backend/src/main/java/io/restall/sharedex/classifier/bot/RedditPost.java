@@ -13,4 +13,11 @@ public record RedditPost(
         String url,
         @JsonProperty("created_utc") Instant created
 ) {
+
+    public static final String IMAGE_HOST_PREFIX = "https://i.redd.it/";
+
+    public boolean hasImages() {
+        return (mediaMetadata != null && !mediaMetadata.isEmpty())
+                || (url != null && url.startsWith(IMAGE_HOST_PREFIX));
+    }
 }
@@ -0,0 +1,6 @@
+package io.restall.sharedex.classifier.bot;
+
+import java.time.Instant;
+
+public record StoredDeck(String id, Instant created) {
+}
@@ -1,4 +1,95 @@
 package io.restall.sharedex.classifier.db;
 
-public class DbClient {
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import io.restall.sharedex.classifier.AppConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded JDBC connection pool shared by everything that talks to Postgres.
+ */
+public class DbClient implements AutoCloseable {
+
+    private final HikariDataSource dataSource;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder timeouts = new LongAdder();
+
+    public DbClient(AppConfig config) {
+        var hikari = new HikariConfig();
+        hikari.setPoolName("pocketdeck");
+        hikari.setJdbcUrl(config.dbUrl());
+        hikari.setUsername(config.dbUser());
+        hikari.setPassword(config.dbPassword());
+        hikari.setMaximumPoolSize(config.dbPoolSize());
+        hikari.setMinimumIdle(Math.min(2, config.dbPoolSize()));
+        hikari.setConnectionTimeout(config.dbPoolTimeoutMs());
+        hikari.setLeakDetectionThreshold(config.dbLeakDetectionMs());
+        hikari.setKeepaliveTime(TimeUnit.MINUTES.toMillis(5));
+        // Use server side prepared statements from the first execution and keep them cached per connection,
+        // pooled connections live long enough for every repository query to stay prepared
+        hikari.addDataSourceProperty("prepareThreshold", "1");
+        hikari.addDataSourceProperty("preparedStatementCacheQueries", "256");
+        // Send JDBC insert batches as multi-row inserts rather than one statement per row
+        hikari.addDataSourceProperty("reWriteBatchedInserts", "true");
+        hikari.setMetricsTrackerFactory(new WaitTimeTrackerFactory());
+
+        dataSource = new HikariDataSource(hikari);
+    }
+
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    public PoolMetrics metrics() {
+        var pool = dataSource.getHikariPoolMXBean();
+        var count = acquisitions.sum();
+        return new PoolMetrics(
+                pool.getActiveConnections(),
+                pool.getIdleConnections(),
+                pool.getThreadsAwaitingConnection(),
+                count,
+                timeouts.sum(),
+                count == 0 ? 0.0 : totalWaitNanos.sum() / (double) count / 1_000_000,
+                maxWaitNanos.get() / 1_000_000.0
+        );
+    }
+
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+
+    public record PoolMetrics(int active, int idle, int waiting, long acquisitions, long timeouts,
+                              double meanWaitMs, double maxWaitMs) {
+    }
+
+    private class WaitTimeTrackerFactory implements MetricsTrackerFactory {
+        @Override
+        public IMetricsTracker create(String poolName, PoolStats poolStats) {
+            return new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    acquisitions.increment();
+                    totalWaitNanos.add(elapsedAcquiredNanos);
+                    maxWaitNanos.accumulate(elapsedAcquiredNanos);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    timeouts.increment();
+                }
+            };
+        }
+    }
 }
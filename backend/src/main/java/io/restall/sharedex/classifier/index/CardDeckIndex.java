@@ -0,0 +1,247 @@
+package io.restall.sharedex.classifier.index;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index from card ordinal to the decks that play it.
+ * <p>
+ * Decks are numbered in the order they were stored, so each posting list is naturally sorted and is kept as
+ * varint encoded deltas. Higher deck numbers are newer decks. Every block of entries records where it starts, so
+ * intersecting a long list with a short one skips the blocks that can't match rather than decoding them.
+ */
+public class CardDeckIndex implements DeckIndex {
+
+    private static final int MAX_CARD_ORDINAL = 0x7FFF;
+
+    private final DeckCatalog catalog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final PostingList[] postings = new PostingList[MAX_CARD_ORDINAL + 1];
+
+    public CardDeckIndex(DeckCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void addAll(List<IndexedDeck> decks) {
+        lock.writeLock().lock();
+        try {
+            for (var deck : decks) {
+                var ordinals = deck.ordinals();
+                for (int i = 0; i < ordinals.length; i++) {
+                    // Ordinals are sorted, so a second copy of a card is skipped
+                    if (i > 0 && ordinals[i] == ordinals[i - 1]) {
+                        continue;
+                    }
+                    var card = ordinals[i];
+                    if (postings[card] == null) {
+                        postings[card] = new PostingList();
+                    }
+                    postings[card].add(deck.number());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds decks containing every card in {@code allOf} and, if {@code anyOf} isn't empty, at least one of
+     * the cards in {@code anyOf}. Newest decks first.
+     */
+    public List<String> search(Collection<Integer> allOf, Collection<Integer> anyOf, int limit) {
+        if (allOf.isEmpty() && anyOf.isEmpty()) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            int[] matches = null;
+            if (!allOf.isEmpty()) {
+                var lists = allOf.stream()
+                        .distinct()
+                        .map(this::postingList)
+                        .toList();
+                if (lists.contains(null)) {
+                    return List.of();
+                }
+                // Start from the shortest list and look its decks up in the longer ones
+                lists = lists.stream().sorted(Comparator.comparingInt(PostingList::size)).toList();
+                matches = lists.getFirst().decode();
+                for (int i = 1; i < lists.size() && matches.length > 0; i++) {
+                    matches = lists.get(i).retainAll(matches);
+                }
+            }
+            if (!anyOf.isEmpty()) {
+                var union = new int[0];
+                for (var card : new LinkedHashSet<>(anyOf)) {
+                    var list = postingList(card);
+                    if (list != null) {
+                        union = union(union, list.decode());
+                    }
+                }
+                matches = matches == null ? union : intersect(matches, union);
+            }
+
+            var result = new ArrayList<String>(Math.min(limit, matches.length));
+            for (int i = matches.length - 1; i >= 0 && result.size() < limit; i--) {
+                result.add(catalog.deckId(matches[i]));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private PostingList postingList(int card) {
+        return card < 0 || card > MAX_CARD_ORDINAL ? null : postings[card];
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        var out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        var out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                out[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                out[n++] = b[j++];
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Sorted deck numbers stored as varint encoded gaps from the previous entry. The first entry of each block is
+     * also kept uncompressed with the offset of the entry after it, so a lookup can start decoding at any block.
+     */
+    private static final class PostingList {
+        private static final int BLOCK_SIZE = 128;
+
+        private byte[] data = new byte[8];
+        private int length;
+        private int count;
+        private int last = -1;
+        private int[] blockFirst = new int[1];
+        private int[] blockNext = new int[1];
+
+        int size() {
+            return count;
+        }
+
+        void add(int deck) {
+            var delta = deck - last;
+            last = deck;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+
+            if (count % BLOCK_SIZE == 0) {
+                var block = count / BLOCK_SIZE;
+                if (block == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, block * 2);
+                    blockNext = Arrays.copyOf(blockNext, block * 2);
+                }
+                blockFirst[block] = deck;
+                blockNext[block] = length;
+            }
+            count++;
+        }
+
+        int[] decode() {
+            var out = new int[count];
+            int value = -1;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                value += delta;
+                out[i] = value;
+            }
+            return out;
+        }
+
+        /**
+         * @return the sorted decks that are both in this list and in {@code decks}
+         */
+        int[] retainAll(int[] decks) {
+            var out = new int[Math.min(decks.length, count)];
+            var n = 0;
+            var blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            var block = -1;
+            // Position of the next entry to decode, and the entry last decoded
+            var index = 0;
+            var pos = 0;
+            var value = -1;
+
+            for (var deck : decks) {
+                if (value < deck) {
+                    // Jump to the last block starting at or before the deck if that's further along
+                    var target = block;
+                    while (target + 1 < blocks && blockFirst[target + 1] <= deck) {
+                        target++;
+                    }
+                    if (target > block && target * BLOCK_SIZE >= index) {
+                        block = target;
+                        index = target * BLOCK_SIZE + 1;
+                        pos = blockNext[target];
+                        value = blockFirst[target];
+                    }
+                    while (value < deck && index < count) {
+                        int delta = 0;
+                        int shift = 0;
+                        byte b;
+                        do {
+                            b = data[pos++];
+                            delta |= (b & 0x7F) << shift;
+                            shift += 7;
+                        } while ((b & 0x80) != 0);
+                        value += delta;
+                        block = index / BLOCK_SIZE;
+                        index++;
+                    }
+                    if (value < deck) {
+                        // Past the end of the list
+                        break;
+                    }
+                }
+                if (value == deck) {
+                    out[n++] = deck;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package io.restall.sharedex.classifier.index;
+
+import io.restall.sharedex.classifier.api.DeckCompressor;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Rolling card inclusion counts over the last day, week and month.
+ * <p>
+ * Decks are counted into 4 hour buckets held in a ring of primitive arrays. Each window keeps running totals
+ * for its current period and the period before it, adjusted as buckets roll over, so answering a query never
+ * touches individual decks.
+ */
+public class CardStats implements DeckIndex {
+
+    private static final long BUCKET_MILLIS = Duration.ofHours(4).toMillis();
+    private static final int MIN_TRENDING_DECKS = 3;
+
+    public enum Window {
+        DAY(6),
+        WEEK(42),
+        MONTH(186);
+
+        private final int buckets;
+
+        Window(int buckets) {
+            this.buckets = buckets;
+        }
+    }
+
+    private static final int RING = Window.MONTH.buckets * 2;
+
+    // Card ordinal to its column in the count arrays
+    private final int[] column;
+    private final String[] cards;
+
+    private final int[][] bucketCounts;
+    private final int[] bucketDecks = new int[RING];
+    private final int[][] currentCounts = new int[Window.values().length][];
+    private final int[][] previousCounts = new int[Window.values().length][];
+    private final int[] currentDecks = new int[Window.values().length];
+    private final int[] previousDecks = new int[Window.values().length];
+
+    private long currentBucket = Long.MIN_VALUE;
+    private long version;
+    private final Map<Window, Snapshot> snapshots = new EnumMap<>(Window.class);
+    private long snapshotVersion = -1;
+
+    public CardStats(DeckCompressor compressor) {
+        column = new int[compressor.maxOrdinal() + 1];
+        var names = new ArrayList<String>();
+        for (int ordinal = 0; ordinal < column.length; ordinal++) {
+            var card = compressor.cardOf(ordinal);
+            column[ordinal] = card == null ? -1 : names.size();
+            if (card != null) {
+                names.add(card);
+            }
+        }
+        cards = names.toArray(String[]::new);
+
+        bucketCounts = new int[RING][cards.length];
+        for (var window : Window.values()) {
+            currentCounts[window.ordinal()] = new int[cards.length];
+            previousCounts[window.ordinal()] = new int[cards.length];
+        }
+    }
+
+    /**
+     * Decks are loaded oldest first, so buckets roll forward exactly as they would have live.
+     */
+    @Override
+    public synchronized void addAll(List<IndexedDeck> decks) {
+        for (var deck : decks) {
+            add(deck.ordinals(), deck.created());
+        }
+    }
+
+    public synchronized Snapshot snapshot(Window window, int limit) {
+        advance(bucketOf(Instant.now()));
+        if (snapshotVersion != version) {
+            snapshots.clear();
+            snapshotVersion = version;
+        }
+        var snapshot = snapshots.computeIfAbsent(window, this::buildSnapshot);
+        return snapshot.limit(limit);
+    }
+
+    private void add(int[] ordinals, Instant created) {
+        var bucket = bucketOf(created);
+        if (bucket > currentBucket) {
+            advance(bucket);
+        }
+        if (bucket <= currentBucket - RING) {
+            return;
+        }
+
+        var slot = slot(bucket);
+        bucketDecks[slot]++;
+        for (var window : Window.values()) {
+            var age = currentBucket - bucket;
+            if (age < window.buckets) {
+                currentDecks[window.ordinal()]++;
+            } else if (age < window.buckets * 2L) {
+                previousDecks[window.ordinal()]++;
+            }
+        }
+
+        for (int i = 0; i < ordinals.length; i++) {
+            // Count inclusion, not copies
+            if ((i > 0 && ordinals[i] == ordinals[i - 1]) || ordinals[i] >= column.length || column[ordinals[i]] == -1) {
+                continue;
+            }
+            var col = column[ordinals[i]];
+            bucketCounts[slot][col]++;
+            for (var window : Window.values()) {
+                var age = currentBucket - bucket;
+                if (age < window.buckets) {
+                    currentCounts[window.ordinal()][col]++;
+                } else if (age < window.buckets * 2L) {
+                    previousCounts[window.ordinal()][col]++;
+                }
+            }
+        }
+        version++;
+    }
+
+    /**
+     * Rolls the ring forward so {@code bucket} is the current bucket, moving buckets between each window's
+     * current and previous totals as they age out.
+     */
+    private void advance(long bucket) {
+        if (bucket <= currentBucket) {
+            return;
+        }
+        if (currentBucket == Long.MIN_VALUE || bucket - currentBucket >= RING) {
+            reset(bucket);
+            return;
+        }
+
+        while (currentBucket < bucket) {
+            currentBucket++;
+            for (var window : Window.values()) {
+                var w = window.ordinal();
+                var leavingCurrent = slot(currentBucket - window.buckets);
+                var leavingPrevious = slot(currentBucket - window.buckets * 2L);
+                currentDecks[w] -= bucketDecks[leavingCurrent];
+                previousDecks[w] += bucketDecks[leavingCurrent] - bucketDecks[leavingPrevious];
+                for (int c = 0; c < cards.length; c++) {
+                    currentCounts[w][c] -= bucketCounts[leavingCurrent][c];
+                    previousCounts[w][c] += bucketCounts[leavingCurrent][c] - bucketCounts[leavingPrevious][c];
+                }
+            }
+            // The new bucket reuses the slot of the bucket that just left the longest window
+            var slot = slot(currentBucket);
+            bucketDecks[slot] = 0;
+            Arrays.fill(bucketCounts[slot], 0);
+        }
+        version++;
+    }
+
+    private void reset(long bucket) {
+        currentBucket = bucket;
+        Arrays.fill(bucketDecks, 0);
+        for (var counts : bucketCounts) {
+            Arrays.fill(counts, 0);
+        }
+        for (var window : Window.values()) {
+            Arrays.fill(currentCounts[window.ordinal()], 0);
+            Arrays.fill(previousCounts[window.ordinal()], 0);
+        }
+        Arrays.fill(currentDecks, 0);
+        Arrays.fill(previousDecks, 0);
+        version++;
+    }
+
+    private Snapshot buildSnapshot(Window window) {
+        var w = window.ordinal();
+        var decks = currentDecks[w];
+        var previous = previousDecks[w];
+
+        var usages = new ArrayList<CardUsage>();
+        for (int c = 0; c < cards.length; c++) {
+            var count = currentCounts[w][c];
+            var previousCount = previousCounts[w][c];
+            if (count == 0 && previousCount == 0) {
+                continue;
+            }
+            var rate = decks == 0 ? 0.0 : (double) count / decks;
+            var previousRate = previous == 0 ? 0.0 : (double) previousCount / previous;
+            usages.add(new CardUsage(cards[c], count, rate, previousRate, rate - previousRate));
+        }
+
+        var popular = usages.stream()
+                .sorted(Comparator.comparingInt(CardUsage::decks).reversed())
+                .toList();
+        var trending = usages.stream()
+                .filter(usage -> usage.decks() >= MIN_TRENDING_DECKS)
+                .sorted(Comparator.comparingDouble(CardUsage::trend).reversed())
+                .toList();
+        return new Snapshot(window, decks, popular, trending);
+    }
+
+    private static long bucketOf(Instant instant) {
+        return Math.floorDiv(instant.toEpochMilli(), BUCKET_MILLIS);
+    }
+
+    private static int slot(long bucket) {
+        return (int) Math.floorMod(bucket, RING);
+    }
+
+    public record CardUsage(String card, int decks, double inclusionRate, double previousInclusionRate, double trend) {
+    }
+
+    public record Snapshot(Window window, int decks, List<CardUsage> popular, List<CardUsage> trending) {
+
+        Snapshot limit(int limit) {
+            return new Snapshot(window, decks,
+                    popular.subList(0, Math.min(limit, popular.size())),
+                    trending.subList(0, Math.min(limit, trending.size())));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.restall.sharedex.classifier.index;
+
+import io.restall.sharedex.classifier.api.DeckCompressor;
+import io.restall.sharedex.classifier.bot.StoredDeck;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Every stored deck by canonical id, numbered in the order they were stored, feeding the in-memory indexes.
+ * <p>
+ * Deck ids are decoded, canonicalized and deduplicated once here, then each new deck is handed to every
+ * {@link DeckIndex} with its number and ordinals. Indexes refer to decks by number and look the id up here.
+ */
+@Slf4j
+public class DeckCatalog {
+
+    private final DeckCompressor compressor;
+    private final List<DeckIndex> indexes = new CopyOnWriteArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<String> deckIds = new ArrayList<>();
+    private final Map<String, Integer> numbers = new HashMap<>();
+
+    public DeckCatalog(DeckCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Registers an index, before any decks are loaded so it sees all of them.
+     */
+    public void addIndex(DeckIndex index) {
+        indexes.add(index);
+    }
+
+    public void load(List<StoredDeck> decks) {
+        var start = System.currentTimeMillis();
+        add(decks);
+        log.info("Indexed {} decks in {}ms", size(), System.currentTimeMillis() - start);
+    }
+
+    public void decksInserted(List<String> newDeckIds, Instant created) {
+        add(newDeckIds.stream().map(deckId -> new StoredDeck(deckId, created)).toList());
+    }
+
+    /**
+     * @return the deck's ordinals in canonical order
+     * @throws IllegalArgumentException if the deck id doesn't decode
+     */
+    public int[] canonicalOrdinals(String deckId) {
+        return DeckCompressor.canonicalOrdinals(compressor.decodeOrdinals(deckId));
+    }
+
+    /**
+     * @return the number of the deck with these canonical ordinals, or -1 if it isn't stored
+     */
+    public int numberOf(int[] canonicalOrdinals) {
+        var canonicalId = compressor.encode(canonicalOrdinals);
+        lock.readLock().lock();
+        try {
+            return numbers.getOrDefault(canonicalId, -1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether the deck with this canonical id has been stored
+     */
+    public boolean contains(String canonicalId) {
+        lock.readLock().lock();
+        try {
+            return numbers.containsKey(canonicalId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String deckId(int number) {
+        lock.readLock().lock();
+        try {
+            return deckIds.get(number);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return deckIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Synchronized so decks reach every index in the order they're numbered. The indexes are updated outside the
+     * catalog's lock, as their readers take their own lock before looking ids up here.
+     */
+    private synchronized void add(List<StoredDeck> decks) {
+        var added = new ArrayList<IndexedDeck>(decks.size());
+        lock.writeLock().lock();
+        try {
+            for (var deck : decks) {
+                int[] ordinals;
+                String canonicalId;
+                try {
+                    ordinals = canonicalOrdinals(deck.id());
+                    canonicalId = compressor.encode(ordinals);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipping invalid deck id: {}", deck.id());
+                    continue;
+                }
+                var number = deckIds.size();
+                if (numbers.putIfAbsent(canonicalId, number) != null) {
+                    continue;
+                }
+                deckIds.add(canonicalId);
+                added.add(new IndexedDeck(number, canonicalId, ordinals, deck.created()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (!added.isEmpty()) {
+            for (var index : indexes) {
+                index.addAll(added);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package io.restall.sharedex.classifier.index;
+
+import java.util.List;
+
+/**
+ * An in-memory index fed by the {@link DeckCatalog}. Each deck is added once, in the order decks are numbered.
+ */
+@FunctionalInterface
+public interface DeckIndex {
+
+    void addAll(List<IndexedDeck> decks);
+}
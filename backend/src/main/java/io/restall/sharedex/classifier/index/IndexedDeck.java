@@ -0,0 +1,13 @@
+package io.restall.sharedex.classifier.index;
+
+import java.time.Instant;
+
+/**
+ * A newly stored deck as it's handed to the indexes.
+ *
+ * @param number   position in the order decks were stored, higher is newer
+ * @param id       canonical deck id
+ * @param ordinals card ordinals in canonical order, so copies of a card are adjacent
+ */
+public record IndexedDeck(int number, String id, int[] ordinals, Instant created) {
+}
@@ -0,0 +1,68 @@
+package io.restall.sharedex.classifier.index;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.SneakyThrows;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The newest decks, kept in a fixed size ring so /latest never needs the database.
+ * <p>
+ * Every change publishes an immutable snapshot with the JSON already serialised, which readers pick up
+ * with a single volatile read.
+ */
+public class LatestDecks {
+
+    private final ObjectMapper om;
+    private final String[] ring;
+    private int head;
+    private int size;
+
+    private volatile Snapshot snapshot;
+
+    public LatestDecks(ObjectMapper om, int capacity) {
+        this.om = om;
+        this.ring = new String[capacity];
+        publish();
+    }
+
+    /**
+     * Seeds the ring from the database, newest deck first.
+     */
+    public synchronized void load(List<String> newestFirst) {
+        for (var deckId : newestFirst.reversed()) {
+            push(deckId);
+        }
+        publish();
+    }
+
+    public synchronized void decksInserted(List<String> deckIds, Instant created) {
+        deckIds.forEach(this::push);
+        publish();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    private void push(String deckId) {
+        ring[head] = deckId;
+        head = (head + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+    }
+
+    @SneakyThrows
+    private void publish() {
+        var newestFirst = new ArrayList<String>(size);
+        for (int i = 1; i <= size; i++) {
+            newestFirst.add(ring[Math.floorMod(head - i, ring.length)]);
+        }
+        var etag = "\"l-" + (newestFirst.isEmpty() ? "" : newestFirst.getFirst()) + "\"";
+        snapshot = new Snapshot(List.copyOf(newestFirst), om.writeValueAsBytes(newestFirst), etag);
+    }
+
+    public record Snapshot(List<String> deckIds, byte[] json, String etag) {
+    }
+}
@@ -0,0 +1,134 @@
+package io.restall.sharedex.classifier.index;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate most viewed decks, using a count-min sketch for counts and a small candidate set for the top K.
+ * <p>
+ * Recording a view is a handful of atomic adds; the candidate set is only locked when a deck's estimate is
+ * high enough to make the top K. All counts are halved every half-life so old spikes fade out.
+ * <p>
+ * Each row hashes the id's UTF-8 bytes with its own seed, so ids that collide in one row are unlikely to collide in
+ * the others.
+ */
+public class PopularDecks {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final long[] SEEDS = new long[DEPTH];
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    static {
+        var random = new Random(0xc0ffee);
+        for (int row = 0; row < DEPTH; row++) {
+            SEEDS[row] = random.nextLong();
+        }
+    }
+
+    private final int k;
+    private final long halfLifeMillis;
+    private final AtomicLongArray counts = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLong nextDecay;
+
+    private final Map<String, Long> candidates = new HashMap<>();
+    private volatile long threshold;
+
+    public PopularDecks(int k, Duration halfLife) {
+        this.k = k;
+        this.halfLifeMillis = halfLife.toMillis();
+        this.nextDecay = new AtomicLong(System.currentTimeMillis() + halfLifeMillis);
+    }
+
+    public void record(String deckId) {
+        maybeDecay();
+
+        var bytes = deckId.getBytes(StandardCharsets.UTF_8);
+        var estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            var index = row * WIDTH + (int) (hash(bytes, SEEDS[row]) & (WIDTH - 1));
+            estimate = Math.min(estimate, counts.incrementAndGet(index));
+        }
+
+        if (estimate > threshold) {
+            offer(deckId, estimate);
+        }
+    }
+
+    public synchronized List<PopularDeck> top(int limit) {
+        return candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(Math.min(limit, k))
+                .map(e -> new PopularDeck(e.getKey(), e.getValue()))
+                .toList();
+    }
+
+    private synchronized void offer(String deckId, long estimate) {
+        candidates.put(deckId, estimate);
+        if (candidates.size() > k * 2) {
+            prune();
+        }
+    }
+
+    private void prune() {
+        var kept = candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(k)
+                .toList();
+        candidates.clear();
+        kept.forEach(e -> candidates.put(e.getKey(), e.getValue()));
+        threshold = kept.size() < k ? 0 : kept.getLast().getValue();
+    }
+
+    private void maybeDecay() {
+        var due = nextDecay.get();
+        var now = System.currentTimeMillis();
+        if (now < due || !nextDecay.compareAndSet(due, now + halfLifeMillis)) {
+            return;
+        }
+
+        for (int i = 0; i < counts.length(); i++) {
+            long current;
+            do {
+                current = counts.get(i);
+            } while (current != 0 && !counts.compareAndSet(i, current, current >> 1));
+        }
+
+        synchronized (this) {
+            candidates.replaceAll((deckId, count) -> count >> 1);
+            candidates.values().removeIf(count -> count == 0);
+            prune();
+        }
+    }
+
+    /**
+     * Seeded 64 bit hash, eight bytes at a time with a murmur style finaliser.
+     */
+    private static long hash(byte[] bytes, long seed) {
+        var h = seed ^ (bytes.length * 0x9E3779B97F4A7C15L);
+        var i = 0;
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ mix((long) LONGS.get(bytes, i)), 27) * 0x9E3779B97F4A7C15L;
+        }
+        var tail = 0L;
+        for (var shift = 0; i < bytes.length; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        return mix(h ^ mix(tail));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    public record PopularDeck(String deckId, long views) {
+    }
+}
@@ -0,0 +1,161 @@
+package io.restall.sharedex.classifier.index;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory MinHash signatures for every stored deck, bucketed with banded LSH so that decks sharing
+ * most of their cards can be found without comparing against every deck.
+ * <p>
+ * A deck is treated as a set of (card ordinal, copy) pairs so that running two copies of a card counts
+ * as more similar than running one.
+ */
+public class SimilarDeckIndex implements DeckIndex {
+
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int HASHES = BANDS * ROWS;
+    // A bucket this full is mostly near identical netdecks, the newest of them are enough
+    private static final int MAX_CANDIDATES_PER_BAND = 256;
+
+    private static final long[] SEEDS_A = new long[HASHES];
+    private static final long[] SEEDS_B = new long[HASHES];
+
+    static {
+        var random = new Random(0x5eed);
+        for (int i = 0; i < HASHES; i++) {
+            SEEDS_A[i] = random.nextLong() | 1;
+            SEEDS_B[i] = random.nextLong();
+        }
+    }
+
+    private final DeckCatalog catalog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Indexed by deck number
+    private final List<int[]> signatures = new ArrayList<>();
+    private final Map<Long, Bucket> buckets = new HashMap<>();
+
+    public SimilarDeckIndex(DeckCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return signatures.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAll(List<IndexedDeck> decks) {
+        lock.writeLock().lock();
+        try {
+            for (var deck : decks) {
+                var signature = signature(deck.ordinals());
+                signatures.add(signature);
+                for (int band = 0; band < BANDS; band++) {
+                    buckets.computeIfAbsent(bucketKey(signature, band), key -> new Bucket()).add(deck.number());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds stored decks that are likely to share most of their cards with the given deck, most similar first.
+     * The deck itself doesn't need to be stored, and is excluded from the results if it is.
+     */
+    public List<SimilarDeck> findSimilar(String deckId, int limit) {
+        var ordinals = catalog.canonicalOrdinals(deckId);
+        var self = catalog.numberOf(ordinals);
+        var signature = signature(ordinals);
+
+        lock.readLock().lock();
+        try {
+            var seen = new HashSet<Integer>();
+            var results = new ArrayList<SimilarDeck>();
+            for (int band = 0; band < BANDS; band++) {
+                var bucket = buckets.get(bucketKey(signature, band));
+                if (bucket == null) {
+                    continue;
+                }
+                // Slots are added in order, so the newest decks are at the end
+                var oldest = Math.max(0, bucket.size - MAX_CANDIDATES_PER_BAND);
+                for (int i = bucket.size - 1; i >= oldest; i--) {
+                    var slot = bucket.slots[i];
+                    if (slot != self && seen.add(slot)) {
+                        results.add(new SimilarDeck(catalog.deckId(slot), estimate(signature, signatures.get(slot))));
+                    }
+                }
+            }
+
+            results.sort(Comparator.comparingDouble(SimilarDeck::similarity).reversed());
+            return results.size() > limit ? List.copyOf(results.subList(0, limit)) : results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int[] signature(int[] sortedOrdinals) {
+        var signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int i = 0; i < sortedOrdinals.length; i++) {
+            // The second copy of a card is a distinct element from the first
+            var copy = i > 0 && sortedOrdinals[i - 1] == sortedOrdinals[i] ? 1 : 0;
+            long element = ((long) sortedOrdinals[i] << 1) | copy;
+            for (int h = 0; h < HASHES; h++) {
+                var hash = (int) (mix(element * SEEDS_A[h] + SEEDS_B[h]) >>> 33);
+                if (hash < signature[h]) {
+                    signature[h] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private static double estimate(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / HASHES;
+    }
+
+    private static long bucketKey(int[] signature, int band) {
+        long hash = band;
+        for (int r = band * ROWS; r < (band + 1) * ROWS; r++) {
+            hash = hash * 0x9E3779B97F4A7C15L + signature[r];
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Slots in one band bucket, grown by doubling so adding a deck doesn't copy the whole bucket.
+     */
+    private static final class Bucket {
+        private int[] slots = new int[2];
+        private int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+
+    public record SimilarDeck(String deckId, double similarity) {
+    }
+}
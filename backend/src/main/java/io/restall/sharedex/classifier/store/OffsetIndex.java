@@ -0,0 +1,192 @@
+package io.restall.sharedex.classifier.store;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongPredicate;
+
+/**
+ * Memory-mapped open addressing hash table from a 64 bit key hash to a log location.
+ * <p>
+ * Only hashes are stored, so lookups pass a predicate that checks the record at a candidate location.
+ * The header records whether the index was closed cleanly, if it wasn't the contents can't be trusted and
+ * {@link #wasClean()} tells the owner to rebuild it from the log.
+ */
+public class OffsetIndex implements AutoCloseable {
+
+    private static final int MAGIC = 0x4F494458; // OIDX
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path path;
+    private final boolean wasClean;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+
+    public OffsetIndex(Path path, int initialCapacity) throws IOException {
+        this.path = path;
+        var existing = Files.exists(path) && Files.size(path) >= HEADER_BYTES ? map(path, -1) : null;
+        if (existing != null && existing.getInt(0) == MAGIC) {
+            buffer = existing;
+            capacity = buffer.getInt(4);
+            size = buffer.getInt(8);
+            wasClean = buffer.getInt(12) == 1;
+        } else {
+            capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+            buffer = create(path, capacity);
+            wasClean = false;
+        }
+
+        if (!wasClean) {
+            clear();
+        }
+        // Until close() the file on disk may be behind the log
+        buffer.putInt(12, 0);
+        buffer.force();
+    }
+
+    public boolean wasClean() {
+        return wasClean;
+    }
+
+    /**
+     * @return the first location stored for the key that matches, or -1 if there isn't one
+     */
+    public long find(long key, LongPredicate matches) {
+        key = nonZero(key);
+        for (int slot = slotOf(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+            var stored = buffer.getLong(keyOffset(slot));
+            if (stored == 0) {
+                return -1;
+            }
+            var location = buffer.getLong(keyOffset(slot) + 8);
+            if (stored == key && matches.test(location)) {
+                return location;
+            }
+        }
+    }
+
+    /**
+     * Adds a new entry, callers check with {@link #find} first when the key may already be present.
+     */
+    public void put(long key, long location) throws IOException {
+        if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        insert(buffer, capacity, nonZero(key), location);
+        buffer.putInt(8, ++size);
+    }
+
+    /**
+     * Points an existing entry at a new location, used when compaction moves a record.
+     */
+    public void replace(long key, long from, long to) {
+        key = nonZero(key);
+        for (int slot = slotOf(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+            var stored = buffer.getLong(keyOffset(slot));
+            if (stored == 0) {
+                throw new IllegalStateException("No entry at location " + from);
+            }
+            if (stored == key && buffer.getLong(keyOffset(slot) + 8) == from) {
+                buffer.putLong(keyOffset(slot) + 8, to);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        buffer.force();
+        buffer.putInt(12, 1);
+        buffer.force();
+    }
+
+    /**
+     * FNV-1a over the bytes, good enough spread for ids that are already mostly random.
+     */
+    public static long hash(byte type, byte[] bytes) {
+        var hash = 0xcbf29ce484222325L;
+        hash = (hash ^ type) * 0x100000001b3L;
+        for (var b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void clear() {
+        for (int i = HEADER_BYTES; i < HEADER_BYTES + (long) capacity * SLOT_BYTES; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        size = 0;
+        buffer.putInt(8, 0);
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Offset index is full");
+        }
+        var newCapacity = capacity << 1;
+        var tmp = path.resolveSibling(path.getFileName() + ".grow");
+        Files.deleteIfExists(tmp);
+        var grown = create(tmp, newCapacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            var key = buffer.getLong(keyOffset(slot));
+            if (key != 0) {
+                insert(grown, newCapacity, key, buffer.getLong(keyOffset(slot) + 8));
+            }
+        }
+        grown.putInt(8, size);
+        grown.force();
+        // The old mapping is released once it's garbage collected
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        buffer = grown;
+        capacity = newCapacity;
+    }
+
+    private static void insert(MappedByteBuffer target, int capacity, long key, long location) {
+        for (int slot = slotOf(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+            if (target.getLong(keyOffset(slot)) == 0) {
+                target.putLong(keyOffset(slot), key);
+                target.putLong(keyOffset(slot) + 8, location);
+                return;
+            }
+        }
+    }
+
+    private static MappedByteBuffer create(Path path, int capacity) throws IOException {
+        var buffer = map(path, HEADER_BYTES + (long) capacity * SLOT_BYTES);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, capacity);
+        buffer.putInt(8, 0);
+        buffer.putInt(12, 0);
+        return buffer;
+    }
+
+    private static MappedByteBuffer map(Path path, long length) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length < 0 ? channel.size() : length);
+        }
+    }
+
+    private static int slotOf(long key, int capacity) {
+        // Mix the high bits in, the low bits alone cluster for similar ids
+        return (int) (key ^ (key >>> 32)) & (capacity - 1);
+    }
+
+    private static int keyOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static long nonZero(long key) {
+        // Zero marks an empty slot
+        return key == 0 ? 1 : key;
+    }
+}
@@ -0,0 +1,415 @@
+package io.restall.sharedex.classifier.store;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records split across numbered segment files.
+ * <p>
+ * Records are written as [int length][int crc32][payload] and addressed by a location that packs the segment number
+ * into the top bits and the offset into the bottom 40. Every open starts a new segment, older segments are sealed and
+ * only change when {@link #compact} merges them. Each segment header holds the number of the oldest segment it
+ * replaces, so a merge interrupted before the replaced files were deleted is finished on the next open.
+ * <p>
+ * The directory is locked while the log is open, so a second process pointed at the same store fails to open it
+ * rather than writing alongside the first.
+ * <p>
+ * Not thread safe, callers serialise access.
+ */
+@Slf4j
+public class SegmentLog implements AutoCloseable {
+
+    private static final int MAGIC = 0x534C4F47; // SLOG
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int OFFSET_BITS = 40;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "store.lock";
+
+    public interface RecordVisitor {
+        void accept(long location, byte[] payload) throws IOException;
+    }
+
+    public interface CompactionHandler {
+        /**
+         * @return whether the record is still live and should be copied into the merged segment
+         */
+        boolean keep(long location, byte[] payload) throws IOException;
+
+        void moved(long from, long to, byte[] payload) throws IOException;
+    }
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    // Every segment by number, the active segment is always the last
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private FileChannel active;
+    private int activeNumber;
+    private long activeSize;
+
+    public SegmentLog(Path dir, long maxSegmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        Files.createDirectories(dir);
+
+        lockChannel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = tryLock(lockChannel);
+            if (lock == null) {
+                throw new IOException("Segment log " + dir + " is already open in another process");
+            }
+            open();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        var numbers = new TreeMap<Integer, Path>();
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList()) {
+                var name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(TMP_SUFFIX)) {
+                    // Unfinished merge, the segments it was replacing are all still there
+                    Files.delete(file);
+                } else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    numbers.put(numberOf(name), file);
+                }
+            }
+        }
+
+        var bases = new TreeMap<Integer, Integer>();
+        for (var entry : numbers.entrySet()) {
+            var file = entry.getValue();
+            if (entry.getKey().equals(numbers.lastKey()) && !hasHeader(file)) {
+                // Rolled just before a crash, before its header was written, so it holds no records
+                log.warn("Removing segment {}, its header was never written", entry.getKey());
+                Files.delete(file);
+                continue;
+            }
+            bases.put(entry.getKey(), readBase(file));
+        }
+
+        // Drop segments already merged into a newer one
+        var covered = Integer.MAX_VALUE;
+        for (var entry : bases.descendingMap().entrySet()) {
+            var number = entry.getKey();
+            if (number >= covered) {
+                log.info("Removing segment {}, it was already merged", number);
+                Files.delete(segmentPath(number));
+                continue;
+            }
+            covered = entry.getValue();
+            segments.put(number, FileChannel.open(segmentPath(number), StandardOpenOption.READ));
+        }
+
+        if (!segments.isEmpty()) {
+            truncateTornTail(segments.lastKey());
+        }
+        roll();
+    }
+
+    /**
+     * Appends the record to the active segment, it isn't durable until {@link #sync()}.
+     *
+     * @return location of the record
+     */
+    public long append(byte[] payload) throws IOException {
+        var location = location(activeNumber, activeSize);
+        activeSize += write(active, activeSize, payload);
+        if (activeSize >= maxSegmentBytes) {
+            sync();
+            roll();
+        }
+        return location;
+    }
+
+    public void sync() throws IOException {
+        active.force(false);
+    }
+
+    public byte[] read(long location) throws IOException {
+        var channel = segments.get(segmentOf(location));
+        if (channel == null) {
+            throw new IllegalArgumentException("No segment for location " + location);
+        }
+        var offset = offsetOf(location);
+        var header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(channel, header, offset);
+        var payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(channel, payload, offset + RECORD_HEADER_BYTES);
+        return payload.array();
+    }
+
+    /**
+     * Visits every record, oldest first.
+     */
+    public void scan(RecordVisitor visitor) throws IOException {
+        for (var number : segments.keySet()) {
+            scan(number, visitor);
+        }
+    }
+
+    /**
+     * @return the oldest run of at least two adjacent sealed segments that fit in a single segment, or an empty list
+     */
+    public List<Integer> compactableRun() throws IOException {
+        var run = new ArrayList<Integer>();
+        var size = 0L;
+        for (var entry : segments.entrySet()) {
+            if (entry.getKey() == activeNumber) {
+                break;
+            }
+            var segmentSize = entry.getValue().size();
+            if (size + segmentSize > maxSegmentBytes) {
+                if (run.size() >= 2) {
+                    return run;
+                }
+                run.clear();
+                size = 0;
+            }
+            run.add(entry.getKey());
+            size += segmentSize;
+        }
+        return run.size() >= 2 ? run : List.of();
+    }
+
+    /**
+     * Merges the sealed segments into one, copying only the records the handler keeps.
+     * The merged segment takes the number of the newest segment in the run so locations keep their order.
+     * The handler is only told about moved records once the merged segment has replaced the run, if the merge fails
+     * the run is left as it was.
+     */
+    public void compact(List<Integer> run, CompactionHandler handler) throws IOException {
+        var first = run.getFirst();
+        var last = run.getLast();
+        var tmp = dir.resolve(PREFIX + last + SUFFIX + TMP_SUFFIX);
+        var moved = new ArrayList<Long>();
+        try {
+            Files.deleteIfExists(tmp);
+            try (var out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                var size = new long[]{writeHeader(out, first)};
+                for (var number : run) {
+                    scan(number, (location, payload) -> {
+                        if (handler.keep(location, payload)) {
+                            size[0] += write(out, size[0], payload);
+                            moved.add(location);
+                        }
+                    });
+                }
+                out.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        for (var number : run) {
+            segments.remove(number).close();
+        }
+        try {
+            Files.move(tmp, segmentPath(last), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            for (var number : run) {
+                segments.put(number, FileChannel.open(segmentPath(number), StandardOpenOption.READ));
+            }
+            throw e;
+        }
+        segments.put(last, FileChannel.open(segmentPath(last), StandardOpenOption.READ));
+
+        // The merged segment holds the kept records in the order they were copied
+        var next = new int[]{0};
+        scan(last, (location, payload) -> handler.moved(moved.get(next[0]++), location, payload));
+        for (var number : run) {
+            if (!number.equals(last)) {
+                Files.delete(segmentPath(number));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        for (var channel : segments.values()) {
+            channel.close();
+        }
+        active.close();
+        lock.release();
+        lockChannel.close();
+    }
+
+    private void scan(int number, RecordVisitor visitor) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(number)), 1 << 16))) {
+            in.skipNBytes(HEADER_BYTES);
+            var offset = (long) HEADER_BYTES;
+            var limit = number == activeNumber ? activeSize : Files.size(segmentPath(number));
+            while (offset < limit) {
+                var length = in.readInt();
+                in.readInt();
+                var payload = in.readNBytes(length);
+                visitor.accept(location(number, offset), payload);
+                offset += RECORD_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    /**
+     * Cuts off a record that was only partly written when the process last stopped.
+     */
+    private void truncateTornTail(int number) throws IOException {
+        var path = segmentPath(number);
+        var fileSize = Files.size(path);
+        var valid = (long) HEADER_BYTES;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            in.skipNBytes(HEADER_BYTES);
+            var crc = new CRC32();
+            while (valid + RECORD_HEADER_BYTES <= fileSize) {
+                var length = in.readInt();
+                var checksum = in.readInt();
+                if (length < 0 || valid + RECORD_HEADER_BYTES + length > fileSize) {
+                    break;
+                }
+                var payload = in.readNBytes(length);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                valid += RECORD_HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // Whatever was read before the end is valid
+        }
+
+        if (valid < fileSize) {
+            log.warn("Truncating segment {} from {} to {} bytes after an incomplete write", number, fileSize, valid);
+            try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.close();
+        }
+        activeNumber = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        var path = segmentPath(activeNumber);
+        active = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = writeHeader(active, activeNumber);
+        active.force(true);
+        segments.put(activeNumber, FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    private static long writeHeader(FileChannel channel, int base) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(base).flip();
+        writeFully(channel, header, 0);
+        return HEADER_BYTES;
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already open in this process
+            return null;
+        }
+    }
+
+    private static boolean hasHeader(Path path) throws IOException {
+        if (Files.size(path) > HEADER_BYTES) {
+            return true;
+        }
+        if (Files.size(path) < HEADER_BYTES) {
+            return false;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            return header.getInt(0) == MAGIC;
+        }
+    }
+
+    private static int readBase(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a segment file: " + path);
+            }
+            return header.getInt(4);
+        }
+    }
+
+    private static int write(FileChannel channel, long position, byte[] payload) throws IOException {
+        var crc = new CRC32();
+        crc.update(payload);
+        var buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .flip();
+        writeFully(channel, buffer, position);
+        return RECORD_HEADER_BYTES + payload.length;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return dir.resolve(PREFIX + number + SUFFIX);
+    }
+
+    private static int numberOf(String fileName) {
+        return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()));
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static long offsetOf(long location) {
+        return location & ((1L << OFFSET_BITS) - 1);
+    }
+
+}
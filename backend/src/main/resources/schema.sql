@@ -19,4 +19,6 @@ CREATE TABLE decks (
     id          TEXT PRIMARY KEY,
     post_id     TEXT NOT NULL REFERENCES posts(id) ON DELETE CASCADE,
     created     TIMESTAMPTZ NOT NULL
-)
+);
+
+CREATE INDEX idx_decks_created_id ON decks(created DESC, id DESC);
@@ -0,0 +1,182 @@
+package io.restall.sharedex.classifier.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeckCompressorTest {
+
+    private static final Map<Integer, String> ID_MAP = buildIdMap();
+
+    private final DeckCompressor compressor = new DeckCompressor(ID_MAP);
+
+    @Test
+    void roundTripsKnownDeck() {
+        var cards = List.of("A3a-21", "A3a-21", "A4-71", "A3-165", "A4-171", "A4-171", "A2a-95", "A2a-96", "P-A-5",
+                "P-A-5", "P-A-6", "A4-151", "A4-151", "A2-147", "P-A-7", "P-A-7", "A2-150", "A2b-71", "A2b-71", "A3-208");
+
+        var deckId = compressor.compress(cards);
+
+        assertThat(deckId).isEqualTo(legacyCompress(cards));
+        assertThat(compressor.decompress(deckId)).containsExactlyElementsOf(cards);
+    }
+
+    @Test
+    void matchesLegacyEncodingForRandomDecks() {
+        var random = new Random(42);
+        var cardNames = encodableCards();
+
+        for (int i = 0; i < 1000; i++) {
+            var cards = randomDeck(random, cardNames);
+            var deckId = compressor.compress(cards);
+
+            assertThat(deckId).isEqualTo(legacyCompress(cards));
+            assertThat(compressor.decompress(deckId)).containsExactlyElementsOf(legacyDecompress(deckId));
+            assertThat(compressor.decompress(deckId)).containsExactlyElementsOf(cards);
+        }
+    }
+
+    @Test
+    void bulkDecodeMatchesSingleDecode() {
+        var random = new Random(7);
+        var cardNames = encodableCards();
+        var deckIds = IntStream.range(0, 50)
+                .mapToObj(i -> compressor.compress(randomDeck(random, cardNames)))
+                .toList();
+
+        var decks = compressor.decompressAll(deckIds);
+        var ordinals = compressor.decodeOrdinalsAll(deckIds);
+
+        for (int i = 0; i < deckIds.size(); i++) {
+            assertThat(decks.get(i)).containsExactlyElementsOf(compressor.decompress(deckIds.get(i)));
+            assertThat(ordinals[i]).containsExactly(compressor.decodeOrdinals(deckIds.get(i)));
+        }
+    }
+
+    @Test
+    void canonicalIdIgnoresCardOrder() {
+        var random = new Random(3);
+        var cards = randomDeck(random, encodableCards());
+        var shuffled = new ArrayList<>(cards);
+        Collections.shuffle(shuffled, random);
+
+        var canonical = compressor.compressCanonical(cards);
+
+        assertThat(compressor.compressCanonical(shuffled)).isEqualTo(canonical);
+        assertThat(compressor.canonicalize(compressor.compress(cards))).isEqualTo(canonical);
+        assertThat(compressor.decompress(canonical)).containsExactlyElementsOf(cards.stream().sorted(
+                Comparator.comparingInt(compressor::ordinalOf)).toList());
+    }
+
+    @Test
+    void rejectsUnknownCard() {
+        assertThatThrownBy(() -> compressor.compress(List.of("Z9-999")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void rejectsMoreThanTwentyEntries() {
+        var cards = IntStream.rangeClosed(1, 21).mapToObj(ID_MAP::get).toList();
+
+        assertThatThrownBy(() -> compressor.compress(cards))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void rejectsUnencodableOrdinalWhenCanonicalizing() {
+        // 20 entries of ordinal 0 decode to a full deck but can't be encoded again
+        var deckId = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[20 * 2]);
+
+        assertThat(compressor.decompress(deckId)).hasSize(20);
+        assertThatThrownBy(() -> compressor.canonicalize(deckId))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static List<String> encodableCards() {
+        // Ordinal 0 can't be encoded as it's indistinguishable from its doubled form
+        return ID_MAP.entrySet().stream()
+                .filter(e -> e.getKey() > 0)
+                .map(Map.Entry::getValue)
+                .toList();
+    }
+
+    private static List<String> randomDeck(Random random, List<String> cardNames) {
+        var cards = new ArrayList<String>(20);
+        while (cards.size() < 20) {
+            var card = cardNames.get(random.nextInt(cardNames.size()));
+            if (!cards.isEmpty() && cards.getLast().equals(card)) {
+                continue;
+            }
+            cards.add(card);
+            if (cards.size() < 20 && random.nextBoolean()) {
+                cards.add(card);
+            }
+        }
+        return cards;
+    }
+
+    private static Map<Integer, String> buildIdMap() {
+        var sets = List.of("A1", "A1a", "A2", "A2a", "A2b", "A3", "A3a", "A4");
+        var ids = new HashMap<Integer, String>();
+        var ordinal = 0;
+        for (var set : sets) {
+            for (int no = 1; no <= 250; no++) {
+                ids.put(ordinal++, set + "-" + no);
+            }
+        }
+        for (int no = 1; no <= 100; no++) {
+            ids.put(8192 + no - 1, "P-A-" + no);
+        }
+        return ids;
+    }
+
+    // Reference copy of the original boxed implementation, used to check the encoding hasn't changed
+
+    private static String legacyCompress(List<String> cards) {
+        var cardMap = ID_MAP.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+        var numbers = cards.stream().map(cardMap::get).toList();
+
+        List<Integer> collapsed = new ArrayList<>();
+        int prev = numbers.getFirst();
+        boolean repeated = false;
+        for (int i = 1; i < numbers.size(); i++) {
+            int curr = numbers.get(i);
+            if (curr == prev) {
+                repeated = true;
+            } else {
+                collapsed.add(repeated ? -prev : prev);
+                prev = curr;
+                repeated = false;
+            }
+        }
+        collapsed.add(repeated ? -prev : prev);
+
+        byte[] bytes = new byte[collapsed.size() * 2];
+        int byteIndex = 0;
+        for (int card : collapsed) {
+            int encoded = Math.abs(card) | (card < 0 ? 0x8000 : 0);
+            bytes[byteIndex++] = (byte) (encoded >> 8);
+            bytes[byteIndex++] = (byte) encoded;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static List<String> legacyDecompress(String deckId) {
+        byte[] bytes = Base64.getUrlDecoder().decode(deckId);
+        List<String> cards = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += 2) {
+            int encoded = ((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF);
+            var card = ID_MAP.get(encoded & 0x7FFF);
+            cards.add(card);
+            if ((encoded & 0x8000) != 0) {
+                cards.add(card);
+            }
+        }
+        return cards;
+    }
+}
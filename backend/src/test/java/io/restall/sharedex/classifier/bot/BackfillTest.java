@@ -0,0 +1,147 @@
+package io.restall.sharedex.classifier.bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BackfillTest {
+
+    // Newest first, keyed by the after= of the request that lists them
+    private static final Map<String, List<String>> PAGES = Map.of(
+            "", List.of("p6", "p5"),
+            "t3_p5", List.of("p4", "p3"),
+            "t3_p3", List.of("p2", "p1"));
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final List<String> requestedAfters = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/r/ptcgp/new.json", exchange -> {
+            var query = exchange.getRequestURI().getQuery();
+            var after = query.contains("after=") ? query.substring(query.indexOf("after=") + 6) : "";
+            requestedAfters.add(after);
+
+            var body = listing(PAGES.get(after)).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (var out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void pagesBackToTheLastPage() {
+        runBackfill(null, 0);
+
+        assertThat(requestedAfters).containsExactly("", "t3_p5", "t3_p3");
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p1", "deck-p2", "deck-p3", "deck-p4", "deck-p5",
+                "deck-p6");
+        assertThat(checkpoint()).contains("complete=true");
+    }
+
+    @Test
+    void stopsAtPostsOlderThanUntil() {
+        runBackfill(Instant.ofEpochSecond(400), 0);
+
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p4", "deck-p5", "deck-p6");
+        assertThat(checkpoint()).contains("complete=true");
+    }
+
+    @Test
+    void resumesFromTheCheckpoint() {
+        runBackfill(null, 1);
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p5", "deck-p6");
+        assertThat(checkpoint()).contains("after=p5").contains("complete=false");
+
+        runBackfill(null, 0);
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p1", "deck-p2", "deck-p3", "deck-p4", "deck-p5",
+                "deck-p6");
+        // The newest page is only listed by the first run
+        assertThat(requestedAfters.stream().filter(String::isEmpty).toList()).hasSize(1);
+        assertThat(checkpoint()).contains("complete=true");
+    }
+
+    private void runBackfill(Instant until, int maxPages) {
+        var redditClient = new RedditClient(new ObjectMapper(),
+                "http://localhost:" + server.getAddress().getPort());
+        var settings = new Backfill.Settings(dir.resolve("backfill.properties"), 0, 0, until, maxPages);
+        try (var deckRepo = new EmbeddedDeckRepository(dir.resolve("decks"));
+             var classifier = new FakeClassifier()) {
+            new Backfill(redditClient, deckRepo, classifier, settings).run();
+        }
+    }
+
+    private List<String> storedDecks() {
+        try (var deckRepo = new EmbeddedDeckRepository(dir.resolve("decks"))) {
+            return deckRepo.getAllDecks().stream().map(StoredDeck::id).toList();
+        }
+    }
+
+    private String checkpoint() {
+        try {
+            return Files.readString(dir.resolve("backfill.properties"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Posts are numbered oldest first and created 100 seconds apart.
+     */
+    private static String listing(List<String> postIds) {
+        var children = postIds.stream()
+                .map(id -> """
+                        {"kind": "t3", "data": {"id": "%s", "title": "Deck %s", "selftext": "",
+                        "url": "https://i.redd.it/%s.png", "created_utc": %d}}"""
+                        .formatted(id, id, id, Integer.parseInt(id.substring(1)) * 100))
+                .collect(Collectors.joining(","));
+        var after = postIds.getLast().equals("p1") ? "null" : "\"t3_" + postIds.getLast() + "\"";
+        return """
+                {"kind": "Listing", "data": {"after": %s, "children": [%s]}}""".formatted(after, children);
+    }
+
+    /**
+     * Finds one deck in every post without downloading anything.
+     */
+    private static class FakeClassifier extends ImageClassifier {
+
+        FakeClassifier() {
+            super(null, null, null, 1, 1, 0);
+        }
+
+        @Override
+        public CompletableFuture<ClassifiedPost> classifyAsync(RedditPost post) {
+            return CompletableFuture.completedFuture(
+                    new ClassifiedPost(post, imageUrls(post), List.of("deck-" + post.id())));
+        }
+    }
+}
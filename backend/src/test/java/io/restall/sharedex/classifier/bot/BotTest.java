@@ -0,0 +1,158 @@
+package io.restall.sharedex.classifier.bot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BotTest {
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    // Newest first, like Reddit lists them
+    private final List<String> posts = new CopyOnWriteArrayList<>();
+    // Posts listed without an image, which the client drops
+    private final Set<String> textPosts = ConcurrentHashMap.newKeySet();
+    // Posts whose next classification fails
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private final List<String> requestedBefores = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/r/ptcgp/new.json", exchange -> {
+            var query = exchange.getRequestURI().getQuery();
+            var before = query.contains("before=t3_") ? query.substring(query.indexOf("before=t3_") + 10) : "";
+            requestedBefores.add(before);
+
+            var listed = before.isEmpty() ? posts : posts.subList(0, Math.max(0, posts.indexOf(before)));
+            var body = listing(listed).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (var out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void resumesFromTheSavedCursor() {
+        posts.addAll(List.of("p3", "p2", "p1"));
+        // The newest post has no image so it's never stored, only the saved cursor remembers it
+        textPosts.add("p3");
+        poll();
+        assertThat(cursorFile()).contains("cursor=p3");
+
+        posts.addFirst("p4");
+        poll();
+
+        assertThat(requestedBefores).containsExactly("", "p3");
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p1", "deck-p2", "deck-p4");
+        assertThat(cursorFile()).contains("cursor=p4");
+    }
+
+    @Test
+    void holdsTheCursorBackForFailedPosts() {
+        posts.add("p1");
+        poll();
+
+        posts.addAll(0, List.of("p3", "p2"));
+        failing.add("p2");
+        poll();
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p1", "deck-p3");
+        assertThat(cursorFile()).contains("cursor=p1");
+
+        poll();
+
+        assertThat(requestedBefores).containsExactly("", "p1", "p1");
+        assertThat(storedDecks()).containsExactlyInAnyOrder("deck-p1", "deck-p2", "deck-p3");
+        assertThat(cursorFile()).contains("cursor=p3");
+    }
+
+    /**
+     * Polls once with a new bot, as if it had been restarted.
+     */
+    private void poll() {
+        var redditClient = new RedditClient(new ObjectMapper(),
+                "http://localhost:" + server.getAddress().getPort());
+        try (var deckRepo = new EmbeddedDeckRepository(dir.resolve("decks"));
+             var deckWriter = new DeckWriteBatcher(deckRepo, 10, 0, 100);
+             var classifier = new FakeClassifier()) {
+            var bot = new Bot(redditClient, deckRepo, deckWriter, classifier, dir.resolve("bot.properties"));
+            bot.run();
+            bot.stop();
+        }
+    }
+
+    private List<String> storedDecks() {
+        try (var deckRepo = new EmbeddedDeckRepository(dir.resolve("decks"))) {
+            return deckRepo.getAllDecks().stream().map(StoredDeck::id).toList();
+        }
+    }
+
+    private String cursorFile() {
+        try {
+            return Files.readString(dir.resolve("bot.properties"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Posts are numbered oldest first and created 100 seconds apart.
+     */
+    private String listing(List<String> postIds) {
+        var children = postIds.stream()
+                .map(id -> """
+                        {"kind": "t3", "data": {"id": "%s", "title": "Deck %s", "selftext": "",
+                        "url": "%s", "created_utc": %d}}"""
+                        .formatted(id, id, textPosts.contains(id) ? "https://www.reddit.com/" + id
+                                : "https://i.redd.it/" + id + ".png", Integer.parseInt(id.substring(1)) * 100))
+                .collect(Collectors.joining(","));
+        return """
+                {"kind": "Listing", "data": {"after": null, "children": [%s]}}""".formatted(children);
+    }
+
+    /**
+     * Finds one deck in every post without downloading anything, failing posts marked to fail once.
+     */
+    private class FakeClassifier extends ImageClassifier {
+
+        FakeClassifier() {
+            super(null, null, null, 1, 1, 0);
+        }
+
+        @Override
+        public CompletableFuture<ClassifiedPost> classifyAsync(RedditPost post) {
+            if (failing.remove(post.id())) {
+                return CompletableFuture.failedFuture(new IOException("Download failed"));
+            }
+            return CompletableFuture.completedFuture(
+                    new ClassifiedPost(post, imageUrls(post), List.of("deck-" + post.id())));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.restall.sharedex.classifier.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeckWriteBatcherTest {
+
+    @Test
+    void retriesTransientFailures() {
+        var repo = new FakeRepository();
+        repo.transientFailures.set(2);
+
+        try (var batcher = new DeckWriteBatcher(repo, 10, 50, 100)) {
+            batcher.submit(List.of("deck-a", "deck-b"), "p1");
+        }
+
+        assertThat(repo.stored).containsExactly("deck-a", "deck-b");
+        assertThat(repo.transientFailures.get()).isEqualTo(0);
+    }
+
+    @Test
+    void dropsOnlyTheRowTheDatabaseRejects() {
+        var repo = new FakeRepository();
+        repo.rejected = "deck-bad";
+
+        try (var batcher = new DeckWriteBatcher(repo, 10, 50, 100)) {
+            batcher.submit(List.of("deck-a", "deck-bad", "deck-c"), "p1");
+        }
+
+        assertThat(repo.stored).containsExactly("deck-a", "deck-c");
+    }
+
+    @Test
+    void flushesQueuedDecksOnClose() {
+        var repo = new FakeRepository();
+
+        // A long window so the decks are still queued when the batcher is closed
+        var batcher = new DeckWriteBatcher(repo, 1000, 60_000, 10_000);
+        for (int i = 0; i < 500; i++) {
+            batcher.submit("deck-" + i, null);
+        }
+        batcher.close();
+
+        assertThat(repo.stored).hasSize(500);
+    }
+
+    @Test
+    void recognisesTransientErrors() {
+        assertThat(DeckWriteBatcher.isTransient(new SQLTransientConnectionException("pool timeout"))).isTrue();
+        assertThat(DeckWriteBatcher.isTransient(new SQLException("connection reset", "08006"))).isTrue();
+        assertThat(DeckWriteBatcher.isTransient(new RuntimeException(new SQLException("deadlock", "40P01")))).isTrue();
+        assertThat(DeckWriteBatcher.isTransient(new SQLException("fk violation", "23503"))).isFalse();
+        assertThat(DeckWriteBatcher.isTransient(new IllegalStateException())).isFalse();
+    }
+
+    private static class FakeRepository implements DeckRepository {
+
+        final List<String> stored = new ArrayList<>();
+        final AtomicInteger transientFailures = new AtomicInteger();
+        volatile String rejected;
+
+        @Override
+        public synchronized void insertDecks(List<PendingDeck> decks) {
+            if (transientFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new RuntimeException(new SQLTransientConnectionException("pool timeout"));
+            }
+            if (decks.stream().anyMatch(deck -> deck.deckId().equals(rejected))) {
+                throw new RuntimeException(new SQLException("fk violation", "23503"));
+            }
+            decks.forEach(deck -> stored.add(deck.deckId()));
+        }
+
+        @Override
+        public void addListener(DeckListener listener) {
+        }
+
+        @Override
+        public void insertPost(RedditPost post, List<String> imageUrls) {
+        }
+
+        @Override
+        public List<String> getLatestPostsIds() {
+            return List.of();
+        }
+
+        @Override
+        public List<String> getLatestDecks() {
+            return List.of();
+        }
+
+        @Override
+        public DeckPage getDeckFeed(FeedCursor cursor, int limit) {
+            return new DeckPage(List.of(), null);
+        }
+
+        @Override
+        public List<StoredDeck> getAllDecks() {
+            return List.of();
+        }
+    }
+}
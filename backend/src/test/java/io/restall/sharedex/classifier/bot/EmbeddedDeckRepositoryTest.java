@@ -0,0 +1,93 @@
+package io.restall.sharedex.classifier.bot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EmbeddedDeckRepositoryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void storesPostsAndDecksAcrossReopen() {
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            repo.insertPost(post("p1", 100), List.of("https://i.redd.it/1.png"));
+            repo.insertPost(post("p2", 200), List.of());
+            repo.insertDecks(List.of("deck-a", "deck-b"), "p1");
+        }
+
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            assertThat(repo.getLatestPostsIds()).containsExactly("p2", "p1");
+            assertThat(repo.getAllDecks().stream().map(StoredDeck::id).toList())
+                    .containsExactlyInAnyOrder("deck-a", "deck-b");
+        }
+    }
+
+    @Test
+    void skipsDecksAlreadyStored() {
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            var notified = new ArrayList<String>();
+            repo.addListener((deckIds, created) -> notified.addAll(deckIds));
+
+            repo.insertDecks(List.of("deck-a", "deck-b"), null);
+            repo.insertDecks(List.of("deck-b", "deck-c"), null);
+
+            assertThat(notified).containsExactly("deck-a", "deck-b", "deck-c");
+            assertThat(repo.getAllDecks()).hasSize(3);
+        }
+    }
+
+    @Test
+    void rebuildsIndexAfterUncleanClose() throws IOException {
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            repo.insertPost(post("p1", 100), List.of());
+            repo.insertDecks(List.of("deck-a", "deck-b"), "p1");
+        }
+        markIndexUnclean();
+
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            var notified = new ArrayList<String>();
+            repo.addListener((deckIds, created) -> notified.addAll(deckIds));
+
+            assertThat(repo.getAllDecks()).hasSize(2);
+            repo.insertDecks(List.of("deck-a", "deck-c"), null);
+            repo.insertPost(post("p1", 100), List.of());
+
+            assertThat(notified).containsExactly("deck-c");
+            assertThat(repo.getAllDecks()).hasSize(3);
+            assertThat(repo.getLatestPostsIds()).containsExactly("p1");
+        }
+    }
+
+    @Test
+    void refusesDirectoryAlreadyInUse() {
+        try (var repo = new EmbeddedDeckRepository(dir)) {
+            assertThatThrownBy(() -> new EmbeddedDeckRepository(dir)).isInstanceOf(IOException.class);
+        }
+    }
+
+    /**
+     * Clears the clean shutdown flag in the index header, as if the process had died without closing the store.
+     */
+    private void markIndexUnclean() throws IOException {
+        try (var channel = FileChannel.open(dir.resolve("index.bin"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0).flip(), 12);
+        }
+    }
+
+    private static RedditPost post(String id, long created) {
+        return new RedditPost(id, "title " + id, "", null, null, Instant.ofEpochSecond(created));
+    }
+}
@@ -0,0 +1,58 @@
+package io.restall.sharedex.classifier.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedditGalleryMetadataTest {
+
+    // Preview widths Reddit lists for a gallery image, the source is added on top
+    private static final List<Integer> PREVIEW_WIDTHS = List.of(108, 216, 320, 640, 960, 1080);
+
+    @Test
+    void picksTheSmallestPreviewWideEnoughForTheCards() {
+        var minWidth = ImageClassifier.minImageWidth(64);
+
+        assertThat(minWidth).isEqualTo(736);
+        assertThat(gallery(1220, 2712).smallestAtLeast(minWidth).x()).isEqualTo(960);
+        assertThat(gallery(1080, 2280).smallestAtLeast(minWidth).x()).isEqualTo(960);
+    }
+
+    @Test
+    void usesTheSourceWhenNoPreviewIsWideEnough() {
+        var source = gallery(828, 1086);
+
+        assertThat(source.smallestAtLeast(ImageClassifier.minImageWidth(64))).isSameAs(source.sourceData());
+    }
+
+    @Test
+    void ignoresPreviewsAsLargeAsTheSource() {
+        var source = gallery(1080, 2045);
+
+        assertThat(source.smallestAtLeast(1000)).isSameAs(source.sourceData());
+    }
+
+    @Test
+    void usesTheSourceWithoutPreviews() {
+        var source = new RedditGalleryMetadata("Image", image(1080, 2280), null);
+
+        assertThat(source.smallestAtLeast(100)).isSameAs(source.sourceData());
+    }
+
+    /**
+     * A gallery image with every standard preview up to the source's width, scaled to the source's aspect ratio.
+     */
+    private static RedditGalleryMetadata gallery(int width, int height) {
+        var previews = PREVIEW_WIDTHS.stream()
+                .filter(x -> x <= width)
+                .map(x -> image(x, x * height / width))
+                .toList();
+        return new RedditGalleryMetadata("Image", image(width, height), previews);
+    }
+
+    private static RedditGalleryImageData image(int width, int height) {
+        return new RedditGalleryImageData(height, width, "https://preview.redd.it/" + width + "x" + height + ".png");
+    }
+}
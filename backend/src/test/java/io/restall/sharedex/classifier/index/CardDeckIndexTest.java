@@ -0,0 +1,111 @@
+package io.restall.sharedex.classifier.index;
+
+import io.restall.sharedex.classifier.api.DeckCompressor;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CardDeckIndexTest {
+
+    private static final int CARDS = 60;
+
+    private final DeckCompressor compressor = new DeckCompressor(buildIdMap());
+    private final DeckCatalog catalog = new DeckCatalog(compressor);
+    private final CardDeckIndex index = new CardDeckIndex(catalog);
+
+    CardDeckIndexTest() {
+        catalog.addIndex(index);
+    }
+
+    @Test
+    void matchesEveryDeckHoldingTheCards() {
+        var random = new Random(7);
+        var decks = new ArrayList<List<Integer>>();
+        // Enough decks that posting lists span many blocks
+        for (int i = 0; i < 3000; i++) {
+            var deck = randomDeck(random);
+            decks.add(deck);
+            catalog.decksInserted(List.of(compressor.compress(cards(deck))), Instant.EPOCH);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            var allOf = List.of(1 + random.nextInt(CARDS), 1 + random.nextInt(CARDS));
+            var anyOf = i % 2 == 0 ? List.<Integer>of() : List.of(1 + random.nextInt(CARDS), 1 + random.nextInt(CARDS));
+
+            var expected = new ArrayList<String>();
+            for (int d = decks.size() - 1; d >= 0; d--) {
+                var deck = decks.get(d);
+                if (deck.containsAll(allOf) && (anyOf.isEmpty() || anyOf.stream().anyMatch(deck::contains))) {
+                    expected.add(compressor.compressCanonical(cards(deck)));
+                }
+            }
+
+            assertThat(index.search(allOf, anyOf, Integer.MAX_VALUE)).containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    void findsRareCardsInLongLists() {
+        var random = new Random(11);
+        var decks = new ArrayList<List<Integer>>();
+        for (int i = 0; i < 3000; i++) {
+            var deck = new ArrayList<>(randomDeck(random));
+            deck.remove(Integer.valueOf(CARDS));
+            if (i % 300 == 0 && deck.size() == 20) {
+                deck.set(0, CARDS);
+            }
+            decks.add(deck);
+            catalog.decksInserted(List.of(compressor.compress(cards(deck))), Instant.EPOCH);
+        }
+
+        for (int card = 1; card < CARDS; card++) {
+            var allOf = List.of(card, CARDS);
+            var expected = new ArrayList<String>();
+            for (int d = decks.size() - 1; d >= 0; d--) {
+                if (decks.get(d).containsAll(allOf)) {
+                    expected.add(compressor.compressCanonical(cards(decks.get(d))));
+                }
+            }
+
+            assertThat(index.search(allOf, List.of(), Integer.MAX_VALUE)).containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    void indexesEachDeckOnceWhateverTheOrder() {
+        var deck = IntStream.rangeClosed(1, 20).boxed().toList();
+        var reversed = new ArrayList<>(deck);
+        Collections.reverse(reversed);
+
+        catalog.decksInserted(List.of(compressor.compress(cards(deck)), "not a deck",
+                compressor.compress(cards(reversed))), Instant.EPOCH);
+
+        assertThat(catalog.size()).isEqualTo(1);
+        assertThat(index.search(List.of(1, 20), List.of(), 10))
+                .containsExactly(compressor.compressCanonical(cards(deck)));
+        assertThat(index.search(List.of(1, 21), List.of(), 10)).isEmpty();
+    }
+
+    private static List<Integer> randomDeck(Random random) {
+        var ordinals = IntStream.rangeClosed(1, CARDS).boxed().collect(Collectors.toList());
+        Collections.shuffle(ordinals, random);
+        return ordinals.subList(0, 20);
+    }
+
+    private List<String> cards(List<Integer> ordinals) {
+        return ordinals.stream().map(compressor::cardOf).toList();
+    }
+
+    private static Map<Integer, String> buildIdMap() {
+        var idMap = new HashMap<Integer, String>();
+        for (int ordinal = 1; ordinal <= CARDS; ordinal++) {
+            idMap.put(ordinal, "A1-" + ordinal);
+        }
+        return idMap;
+    }
+}
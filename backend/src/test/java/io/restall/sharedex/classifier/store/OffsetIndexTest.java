@@ -0,0 +1,83 @@
+package io.restall.sharedex.classifier.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OffsetIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void growsPastInitialCapacity() throws IOException {
+        var path = dir.resolve("index.bin");
+        var index = new OffsetIndex(path, 16);
+        var initialSize = Files.size(path);
+        for (int i = 0; i < 1000; i++) {
+            index.put(key(i), i);
+        }
+
+        assertThat(Files.size(path)).isGreaterThan(initialSize);
+        for (int i = 0; i < 1000; i++) {
+            var location = i;
+            assertThat(index.find(key(i), stored -> stored == location)).isEqualTo((long) i);
+        }
+        assertThat(index.find(key(1000), stored -> true)).isEqualTo(-1L);
+        index.close();
+
+        var reopened = new OffsetIndex(path, 16);
+        assertThat(reopened.wasClean()).isTrue();
+        for (int i = 0; i < 1000; i++) {
+            var location = i;
+            assertThat(reopened.find(key(i), stored -> stored == location)).isEqualTo((long) i);
+        }
+        reopened.close();
+    }
+
+    @Test
+    void keepsEveryLocationForCollidingKeys() throws IOException {
+        var index = new OffsetIndex(dir.resolve("index.bin"), 16);
+        index.put(42, 1);
+        index.put(42, 2);
+
+        assertThat(index.find(42, stored -> stored == 2)).isEqualTo(2L);
+        assertThat(index.find(42, stored -> stored == 1)).isEqualTo(1L);
+        assertThat(index.find(42, stored -> stored == 3)).isEqualTo(-1L);
+        index.close();
+    }
+
+    @Test
+    void replacesLocation() throws IOException {
+        var index = new OffsetIndex(dir.resolve("index.bin"), 16);
+        index.put(key(1), 10);
+        index.replace(key(1), 10, 20);
+
+        assertThat(index.find(key(1), stored -> stored == 10)).isEqualTo(-1L);
+        assertThat(index.find(key(1), stored -> stored == 20)).isEqualTo(20L);
+        index.close();
+    }
+
+    @Test
+    void clearsIndexThatWasNotClosed() throws IOException {
+        var path = dir.resolve("index.bin");
+        var index = new OffsetIndex(path, 16);
+        index.put(key(1), 10);
+
+        // Opened again without close(), as after a crash
+        var reopened = new OffsetIndex(path, 16);
+        assertThat(reopened.wasClean()).isFalse();
+        assertThat(reopened.find(key(1), stored -> true)).isEqualTo(-1L);
+        reopened.close();
+    }
+
+    private static long key(int i) {
+        return OffsetIndex.hash((byte) 1, ("id-" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,262 @@
+package io.restall.sharedex.classifier.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SegmentLogTest {
+
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackAppendedRecords() throws IOException {
+        var locations = new LinkedHashMap<Long, String>();
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            for (int i = 0; i < 100; i++) {
+                locations.put(log.append(bytes("record-" + i)), "record-" + i);
+            }
+            log.sync();
+            for (var entry : locations.entrySet()) {
+                assertThat(text(log.read(entry.getKey()))).isEqualTo(entry.getValue());
+            }
+        }
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log)).isEqualTo(locations);
+        }
+    }
+
+    @Test
+    void rollsToNewSegmentsWhenFull() throws IOException {
+        var written = new ArrayList<String>();
+        try (var log = new SegmentLog(dir, 256)) {
+            for (int i = 0; i < 50; i++) {
+                log.append(bytes("record-" + i));
+                written.add("record-" + i);
+            }
+        }
+
+        try (var log = new SegmentLog(dir, 256)) {
+            assertThat(scan(log).values()).containsExactlyElementsOf(written);
+        }
+        assertThat(segmentFiles().size()).isGreaterThan(2);
+    }
+
+    @Test
+    void truncatesTornTail() throws IOException {
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            log.append(bytes("a"));
+            log.append(bytes("b"));
+        }
+        var segment = segmentFiles().getLast();
+        var validSize = Files.size(segment);
+        // A record header promising more bytes than were written before the crash
+        Files.write(segment, ByteBuffer.allocate(12).putInt(100).putInt(0).putInt(42).array(),
+                StandardOpenOption.APPEND);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("a", "b");
+            assertThat(Files.size(segment)).isEqualTo(validSize);
+            log.append(bytes("c"));
+        }
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("a", "b", "c");
+        }
+    }
+
+    @Test
+    void truncatesRecordWithBadChecksum() throws IOException {
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            log.append(bytes("a"));
+            log.append(bytes("b"));
+        }
+        var segment = segmentFiles().getLast();
+        var validSize = Files.size(segment);
+        Files.write(segment, ByteBuffer.allocate(9).putInt(1).putInt(12345).put((byte) 'c').array(),
+                StandardOpenOption.APPEND);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("a", "b");
+        }
+        assertThat(Files.size(segment)).isEqualTo(validSize);
+    }
+
+    @Test
+    void removesLastSegmentWithoutHeader() throws IOException {
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            log.append(bytes("a"));
+        }
+        var headerless = dir.resolve("segment-" + (segmentNumber(segmentFiles().getLast()) + 1) + ".log");
+        Files.write(headerless, new byte[3]);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("a");
+        }
+        // Removed and then created again as the new active segment
+        assertThat(Files.size(headerless)).isEqualTo(8L);
+    }
+
+    @Test
+    void compactsSealedSegments() throws IOException {
+        writeSealedSegments(3);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            var before = scan(log);
+            var moves = new LinkedHashMap<Long, Long>();
+            log.compact(List.of(1, 2, 3), handler(location -> !text(log.read(location)).equals("segment-2"), moves));
+
+            assertThat(moves.keySet()).hasSize(2);
+            for (var move : moves.entrySet()) {
+                assertThat(text(log.read(move.getValue()))).isEqualTo(before.get(move.getKey()));
+            }
+            assertThat(scan(log).values()).containsExactly("segment-1", "segment-3");
+        }
+
+        assertThat(segmentFiles().stream().map(SegmentLogTest::segmentNumber).toList()).containsExactly(3, 4);
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("segment-1", "segment-3");
+        }
+    }
+
+    @Test
+    void failedCompactionLeavesSegmentsAsTheyWere() throws IOException {
+        writeSealedSegments(3);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            var before = scan(log);
+            var moves = new LinkedHashMap<Long, Long>();
+            assertThatThrownBy(() -> log.compact(List.of(1, 2, 3), handler(location -> {
+                if (text(log.read(location)).equals("segment-3")) {
+                    throw new IOException("Disk full");
+                }
+                return true;
+            }, moves))).isInstanceOf(IOException.class);
+
+            assertThat(moves).isEmpty();
+            assertThat(scan(log)).isEqualTo(before);
+            assertThat(tmpFiles()).isEmpty();
+
+            // The next attempt isn't blocked by anything the failed one left behind
+            log.compact(List.of(1, 2, 3), handler(location -> true, moves));
+            assertThat(moves.keySet()).containsExactlyElementsOf(before.keySet());
+        }
+    }
+
+    @Test
+    void discardsUnfinishedCompaction() throws IOException {
+        writeSealedSegments(2);
+        Files.write(dir.resolve("segment-2.log.tmp"), new byte[]{1, 2, 3});
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("segment-1", "segment-2");
+        }
+        assertThat(tmpFiles()).isEmpty();
+    }
+
+    @Test
+    void finishesCompactionInterruptedBeforeMergedSegmentsWereDeleted() throws IOException {
+        writeSealedSegments(3);
+        var saved = dir.resolve("saved");
+        Files.copy(dir.resolve("segment-1.log"), saved);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            log.compact(List.of(1, 2), handler(location -> true, new LinkedHashMap<>()));
+        }
+        // As if the process died after the merged segment was moved into place but before segment 1 was deleted
+        Files.move(saved, dir.resolve("segment-1.log"), StandardCopyOption.REPLACE_EXISTING);
+
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThat(scan(log).values()).containsExactly("segment-1", "segment-2", "segment-3");
+        }
+        assertThat(Files.exists(dir.resolve("segment-1.log"))).isFalse();
+    }
+
+    @Test
+    void refusesToOpenTwice() throws IOException {
+        try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+            assertThatThrownBy(() -> new SegmentLog(dir, SEGMENT_BYTES))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("already open");
+        }
+        new SegmentLog(dir, SEGMENT_BYTES).close();
+    }
+
+    private interface KeepPredicate {
+        boolean keep(long location) throws IOException;
+    }
+
+    private static SegmentLog.CompactionHandler handler(KeepPredicate keep, Map<Long, Long> moves) {
+        return new SegmentLog.CompactionHandler() {
+            @Override
+            public boolean keep(long location, byte[] payload) throws IOException {
+                return keep.keep(location);
+            }
+
+            @Override
+            public void moved(long from, long to, byte[] payload) {
+                moves.put(from, to);
+            }
+        };
+    }
+
+    /**
+     * Each open starts a new segment, so this leaves segments 1 to count sealed with one record each.
+     */
+    private void writeSealedSegments(int count) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            try (var log = new SegmentLog(dir, SEGMENT_BYTES)) {
+                log.append(bytes("segment-" + i));
+            }
+        }
+    }
+
+    private static Map<Long, String> scan(SegmentLog log) throws IOException {
+        var records = new LinkedHashMap<Long, String>();
+        log.scan((location, payload) -> records.put(location, text(payload)));
+        return records;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log"))
+                    .sorted((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)))
+                    .toList();
+        }
+    }
+
+    private List<Path> tmpFiles() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".tmp")).toList();
+        }
+    }
+
+    private static int segmentNumber(Path file) {
+        var name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}